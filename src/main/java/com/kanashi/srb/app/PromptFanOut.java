@@ -0,0 +1,174 @@
+package com.kanashi.srb.app;
+
+import com.kanashi.srb.app.model.user.UserProfile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Hourly polls of many users spread over the poll window instead of firing all at once.
+ * Every user gets a fixed offset within the window derived from a hash of the user id, so the same user
+ * is polled at the same minute every hour and the outbound rate stays flat as the number of users grows.
+ * Polls which are due at the same (unshifted) time form a round; a round is reported once all its prompts are sent
+ */
+public class PromptFanOut {
+    private static final Logger log = LogManager.getLogger(PromptFanOut.class);
+
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+    private static final long SECOND_MILLIS = 1000L;
+    // A round that still has prompts in flight an hour after it started is reported as is
+    private static final long ROUND_MAX_AGE_MILLIS = 60 * MINUTE_MILLIS;
+
+    /*
+     * Sends the user's poll for the given local time; the future completes once it's sent
+     */
+    public interface PollSender {
+        CompletableFuture<?> send(UserProfile profile, ZonedDateTime now);
+    }
+
+    private static final class Round {
+        private final long startMillis;
+        private final AtomicInteger firedCount = new AtomicInteger();
+        private final AtomicInteger sentCount = new AtomicInteger();
+        private final AtomicInteger failedCount = new AtomicInteger();
+        private final AtomicLong lastCompletedMillis = new AtomicLong();
+        private final AtomicLong maxSendLagMillis = new AtomicLong();
+
+        private Round(long startMillis) {
+            this.startMillis = startMillis;
+        }
+
+        private boolean isComplete() {
+            return firedCount.get() == sentCount.get() + failedCount.get();
+        }
+    }
+
+    private final PromptScheduler scheduler;
+    private final int minuteStart;
+    private final long windowMillis;
+    private final PollSender pollSender;
+    private final ConcurrentHashMap<Long, Round> rounds = new ConcurrentHashMap<>();
+
+    /*
+     * Polls go out between minuteStart and minuteEnd of every poll hour
+     */
+    public PromptFanOut(PromptScheduler scheduler, int minuteStart, int minuteEnd, PollSender pollSender) {
+        if (minuteStart < 0 || minuteEnd > 59 || minuteEnd < minuteStart) {
+            throw new IllegalArgumentException("Invalid poll window: " + minuteStart + "-" + minuteEnd);
+        }
+
+        this.scheduler = scheduler;
+        this.minuteStart = minuteStart;
+        this.windowMillis = (minuteEnd - minuteStart) * MINUTE_MILLIS;
+        this.pollSender = pollSender;
+    }
+
+    /*
+     * Whole seconds, since the scheduler fires on a one-second tick
+     */
+    public long offsetMillis(long userId) {
+        long windowSeconds = windowMillis / SECOND_MILLIS;
+        return windowSeconds == 0 ? 0L : Long.remainderUnsigned(mix(userId), windowSeconds) * SECOND_MILLIS;
+    }
+
+    // SplitMix64 finalizer: sequential ids end up evenly spread
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /*
+     * A user whose slot in the current hour's window has already passed (the app was down) is polled right away
+     */
+    public void scheduleAll(Collection<UserProfile> profiles) {
+        long nowMillis = System.currentTimeMillis();
+
+        for (UserProfile profile : profiles) {
+            long offset = offsetMillis(profile.userId());
+            PromptScheduler.Recurrence recurrence = PromptScheduler.Recurrence
+                    .hourly(profile.zoneId(), minuteStart, profile::isPollHour)
+                    .withOffset(offset);
+
+            long windowStartMillis = windowStartMillis(profile, nowMillis);
+            boolean missedThisHour = profile.isPollHour(Instant.ofEpochMilli(nowMillis).atZone(profile.zoneId()).getHour())
+                    && nowMillis > windowStartMillis + offset && nowMillis <= windowStartMillis + windowMillis;
+
+            long firstFireMillis = missedThisHour ? nowMillis : recurrence.nextFireMillis(nowMillis);
+            scheduler.scheduleTimed("hourly poll for " + profile.userId(), recurrence,
+                    scheduledMillis -> fire(profile, offset, scheduledMillis), firstFireMillis);
+        }
+
+        log.info("Hourly polls of {} user(s) spread over {} min", profiles.size(), windowMillis / MINUTE_MILLIS);
+    }
+
+    /*
+     * Start of the poll window in the user's hour which contains the given time
+     */
+    private long windowStartMillis(UserProfile profile, long millis) {
+        return Instant.ofEpochMilli(millis).atZone(profile.zoneId())
+                .truncatedTo(ChronoUnit.HOURS)
+                .plusMinutes(minuteStart)
+                .toInstant().toEpochMilli();
+    }
+
+    private void fire(UserProfile profile, long offset, long scheduledMillis) {
+        long firedMillis = System.currentTimeMillis();
+        // The window the slot belongs to, taken from the scheduled time rather than the actual one.
+        // A catch-up run is scheduled within the window of the slot it makes up for, so it lands in that round too
+        long roundStartMillis = windowStartMillis(profile, scheduledMillis - offset);
+        Round round = rounds.computeIfAbsent(roundStartMillis, Round::new);
+        round.firedCount.incrementAndGet();
+
+        CompletableFuture<?> sent;
+        try {
+            sent = pollSender.send(profile, Instant.ofEpochMilli(firedMillis).atZone(profile.zoneId()));
+        } catch (RuntimeException re) {
+            sent = CompletableFuture.failedFuture(re);
+        }
+
+        sent.whenComplete((result, throwable) -> {
+            long completedMillis = System.currentTimeMillis();
+            round.lastCompletedMillis.accumulateAndGet(completedMillis, Math::max);
+            round.maxSendLagMillis.accumulateAndGet(completedMillis - firedMillis, Math::max);
+            if (throwable == null) {
+                round.sentCount.incrementAndGet();
+            } else {
+                round.failedCount.incrementAndGet();
+            }
+        });
+    }
+
+    /*
+     * Logs and forgets rounds whose window is over and all prompts are sent (or which are too old to wait for).
+     * Returns the number of reported rounds
+     */
+    public int reportCompletedRounds(long nowMillis) {
+        int reportedCount = 0;
+
+        for (Round round : rounds.values()) {
+            boolean windowOver = nowMillis > round.startMillis + windowMillis;
+            boolean tooOld = nowMillis > round.startMillis + ROUND_MAX_AGE_MILLIS;
+            if (!tooOld && !(windowOver && round.isComplete())) {
+                continue;
+            }
+
+            rounds.remove(round.startMillis, round);
+            reportedCount++;
+            log.info("Poll round {}: {} fired, {} sent, {} failed{}, completed {} s after the window start, max send lag {} ms",
+                    Instant.ofEpochMilli(round.startMillis), round.firedCount.get(), round.sentCount.get(), round.failedCount.get(),
+                    round.isComplete() ? "" : " (" + (round.firedCount.get() - round.sentCount.get() - round.failedCount.get()) + " unfinished)",
+                    (round.lastCompletedMillis.get() - round.startMillis) / SECOND_MILLIS, round.maxSendLagMillis.get());
+        }
+
+        return reportedCount;
+    }
+}
@@ -0,0 +1,236 @@
+package com.kanashi.srb.app;
+
+import com.kanashi.srb.app.utility.TimingWheel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+import java.util.function.LongConsumer;
+
+/*
+ * Fires recurring jobs (hourly prompts of every user, the daily sheet roll-over, the failure replay) at their exact time.
+ * One timer thread keeps the next fire time of every job in a timing wheel and sleeps until the earliest of them;
+ * it only reschedules, the jobs themselves run on a separate executor, so slow I/O of one job doesn't delay others.
+ * A job which is still running when it's due again skips that run
+ */
+public class PromptScheduler {
+    private static final Logger log = LogManager.getLogger(PromptScheduler.class);
+
+    // 64 one-second slots per level, 4 levels cover ~194 days
+    private static final long TICK_MILLIS = 1000L;
+    private static final int WHEEL_SIZE = 64;
+    private static final int WHEEL_LEVELS = 4;
+    private static final int MAX_HOURS_TO_SEARCH = 48;
+
+    /*
+     * Next fire time strictly after the given time, epoch millis
+     */
+    public interface Recurrence {
+        long nextFireMillis(long afterMillis);
+
+        /*
+         * Same times moved later by offsetMillis
+         */
+        default Recurrence withOffset(long offsetMillis) {
+            return afterMillis -> {
+                long nextFireMillis = nextFireMillis(afterMillis - offsetMillis);
+                return nextFireMillis == Long.MAX_VALUE ? Long.MAX_VALUE : nextFireMillis + offsetMillis;
+            };
+        }
+
+        /*
+         * Every hour at the given minute, only hours accepted by the filter. DST gaps and overlaps follow the zone rules
+         */
+        static Recurrence hourly(ZoneId zoneId, int minute, IntPredicate hourFilter) {
+            return afterMillis -> {
+                ZonedDateTime candidate = Instant.ofEpochMilli(afterMillis).atZone(zoneId)
+                        .truncatedTo(ChronoUnit.HOURS)
+                        .withMinute(minute);
+                for (int hourIdx = 0; hourIdx < MAX_HOURS_TO_SEARCH; hourIdx++) {
+                    if (candidate.toInstant().toEpochMilli() > afterMillis && hourFilter.test(candidate.getHour())) {
+                        return candidate.toInstant().toEpochMilli();
+                    }
+                    candidate = candidate.plusHours(1);
+                }
+                return Long.MAX_VALUE;
+            };
+        }
+
+        /*
+         * Every intervalMillis, regardless of the wall clock
+         */
+        static Recurrence every(long intervalMillis) {
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("Invalid interval: " + intervalMillis + " ms");
+            }
+            return afterMillis -> afterMillis + intervalMillis;
+        }
+
+        static Recurrence daily(ZoneId zoneId, LocalTime time) {
+            return afterMillis -> {
+                ZonedDateTime after = Instant.ofEpochMilli(afterMillis).atZone(zoneId);
+                ZonedDateTime candidate = after.toLocalDate().atTime(time).atZone(zoneId);
+                if (candidate.toInstant().toEpochMilli() <= afterMillis) {
+                    candidate = after.toLocalDate().plusDays(1).atTime(time).atZone(zoneId);
+                }
+                return candidate.toInstant().toEpochMilli();
+            };
+        }
+    }
+
+    public static final class ScheduledJob {
+        private final String name;
+        private final Recurrence recurrence;
+        private final LongConsumer task;
+        private final AtomicBoolean running = new AtomicBoolean();
+        // Guarded by the scheduler's lock
+        private TimingWheel.Timeout<ScheduledJob> timeout;
+
+        private ScheduledJob(String name, Recurrence recurrence, LongConsumer task) {
+            this.name = name;
+            this.recurrence = recurrence;
+            this.task = task;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wheelChanged = lock.newCondition();
+    private final TimingWheel<ScheduledJob> wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, WHEEL_LEVELS, System.currentTimeMillis());
+    private final ExecutorService jobExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Thread timer;
+    private volatile boolean running = true;
+
+    public PromptScheduler() {
+        timer = Thread.ofPlatform().name("prompt-scheduler").daemon().start(this::runTimer);
+    }
+
+    public ScheduledJob schedule(String name, Recurrence recurrence, Runnable task) {
+        return schedule(name, recurrence, task, recurrence.nextFireMillis(System.currentTimeMillis()));
+    }
+
+    /*
+     * firstFireMillis overrides the first run, e.g. to catch up on a run missed while the app was down
+     */
+    public ScheduledJob schedule(String name, Recurrence recurrence, Runnable task, long firstFireMillis) {
+        return scheduleTimed(name, recurrence, scheduledMillis -> task.run(), firstFireMillis);
+    }
+
+    /*
+     * The task gets the time the run was scheduled for, which the actual start may lag behind
+     */
+    public ScheduledJob scheduleTimed(String name, Recurrence recurrence, LongConsumer task, long firstFireMillis) {
+        ScheduledJob job = new ScheduledJob(name, recurrence, task);
+
+        lock.lock();
+        try {
+            job.timeout = wheel.schedule(job, firstFireMillis);
+            wheelChanged.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        log.debug("Job '{}' scheduled at {}", name, Instant.ofEpochMilli(firstFireMillis));
+        return job;
+    }
+
+    public void cancel(ScheduledJob job) {
+        lock.lock();
+        try {
+            wheel.cancel(job.timeout);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return wheel.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runTimer() {
+        lock.lock();
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                List<ScheduledJob> dueJobs = wheel.advance(now);
+                for (ScheduledJob job : dueJobs) {
+                    long scheduledMillis = job.timeout.getDeadlineMillis();
+                    // Planned from the missed time, but never in the past, so a long pause doesn't fire a backlog of runs
+                    long nextFireMillis = job.recurrence.nextFireMillis(Math.max(scheduledMillis, now));
+                    if (nextFireMillis != Long.MAX_VALUE) {
+                        job.timeout = wheel.schedule(job, nextFireMillis);
+                    }
+                    try {
+                        jobExecutor.execute(() -> runJob(job, scheduledMillis));
+                    } catch (RejectedExecutionException ree) {
+                        return;
+                    }
+                }
+
+                long wakeupMillis = wheel.nextWakeupMillis();
+                if (wakeupMillis == Long.MAX_VALUE) {
+                    wheelChanged.await();
+                } else if (wakeupMillis > now) {
+                    wheelChanged.await(wakeupMillis - now, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runJob(ScheduledJob job, long scheduledMillis) {
+        if (!job.running.compareAndSet(false, true)) {
+            log.warn("Job '{}' is still running, this run is skipped", job.name);
+            return;
+        }
+
+        try {
+            job.task.accept(scheduledMillis);
+        } catch (Throwable t) {
+            log.error("Job '{}' failed: {}", job.name, t.getMessage());
+        } finally {
+            job.running.set(false);
+        }
+    }
+
+    /*
+     * Stops firing and waits for running jobs to finish
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        timer.interrupt();
+
+        jobExecutor.shutdown();
+        try {
+            if (!jobExecutor.awaitTermination(timeout, unit)) {
+                log.warn("Scheduled jobs didn't finish in time");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
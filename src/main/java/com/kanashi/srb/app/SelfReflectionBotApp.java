@@ -1,8 +1,13 @@
 package com.kanashi.srb.app;
 
+import com.kanashi.srb.app.model.reflection.FailureReplayJob;
+import com.kanashi.srb.app.model.reflection.PollQueueStore;
 import com.kanashi.srb.app.model.reflection.PollReflectionQueue;
 import com.kanashi.srb.app.model.reflection.Reflection;
 import com.kanashi.srb.app.model.reflection.ReflectionWriter;
+import com.kanashi.srb.app.model.user.UserDirectory;
+import com.kanashi.srb.app.model.user.UserProfile;
+import com.kanashi.srb.google.api.SheetService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.kanashi.srb.telegram.bot.SelfReflectionBot;
@@ -11,10 +16,10 @@ import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
 import java.io.IOException;
-import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.ZoneId;
-import java.util.HashSet;
-import java.util.Set;
+import java.time.ZonedDateTime;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -28,53 +33,89 @@ public class SelfReflectionBotApp {
     private static final String APP_MODES_DEBUG = "DEBUG";
     private static final String BOT_TIMEZONE = "CET";
 
-    private static final int BOT_POLL_INITIAL_DELAY = 0;
-    private static final int BOT_POLL_INTERVAL = 5;
-    private static final TimeUnit BOT_POLL_UNIT = TimeUnit.MINUTES;
+    // Hourly polls of all users are spread between these minutes of the hour, each user keeps its own minute
     private static final int BOT_POLL_MINUTE_START = 1;
     private static final int BOT_POLL_MINUTE_END = 15;
 
-    private static final int BOT_POLL_CLEANUP_HOUR = 3;
+    private static final long BOT_POLL_REPORT_INITIAL_DELAY = 1;
+    private static final long BOT_POLL_REPORT_INTERVAL = 1;
+    private static final TimeUnit BOT_POLL_REPORT_UNIT = TimeUnit.MINUTES;
+
+    private static final LocalTime BOT_POLL_CLEANUP_TIME = LocalTime.of(3, 0);
+    // Day blocks are appended this many days before they're needed
+    private static final int BOT_DAY_BLOCKS_AHEAD = 1;
+
+    private static final long BOT_POLL_EXPIRY_INITIAL_DELAY = 0;
+    private static final long BOT_POLL_EXPIRY_INTERVAL = 1;
+    private static final TimeUnit BOT_POLL_EXPIRY_UNIT = TimeUnit.MINUTES;
 
     private static final long BOT_POLL_SAVE_QUEUE_INITIAL_DELAY = 1;
     private static final long BOT_POLL_SAVE_QUEUE_INTERVAL = 1;
-    private static final TimeUnit BOT_POLL_SAVE_QUEUE_UNIT = TimeUnit.HOURS;
+    private static final TimeUnit BOT_POLL_SAVE_QUEUE_UNIT = TimeUnit.MINUTES;
+
+    private static final String DATA_QUEUE_DAT = "data/poll_queue.dat";
+    private static final String LEGACY_DATA_QUEUE_SER = "data/poll_queue.ser";
+
+    private static final long BOT_FAILURE_REPLAY_INITIAL_DELAY = 5;
+    private static final long BOT_FAILURE_REPLAY_INTERVAL = 60;
+    private static final TimeUnit BOT_FAILURE_REPLAY_UNIT = TimeUnit.MINUTES;
+
+    private static final long BOT_SESSION_EVICTION_INITIAL_DELAY = 10;
+    private static final long BOT_SESSION_EVICTION_INTERVAL = 10;
+    private static final TimeUnit BOT_SESSION_EVICTION_UNIT = TimeUnit.MINUTES;
 
-    private static final String DATA_QUEUE_DAT = "data/poll_queue.ser";
+    private static final long BOT_METRICS_REPORT_INITIAL_DELAY = 10;
+    private static final long BOT_METRICS_REPORT_INTERVAL = 10;
+    private static final TimeUnit BOT_METRICS_REPORT_UNIT = TimeUnit.MINUTES;
 
-    private static final int BOT_POLL_PREPARE_NEW_INITIAL_DELAY = 1;
-    private static final int BOT_POLL_PREPARE_NEW_INTERVAL = 1;
-    private static final TimeUnit BOT_POLL_PREPARE_NEW_UNIT = TimeUnit.HOURS;
+    private static final long BOT_OUTBOUND_SHUTDOWN_TIMEOUT = 10;
+    private static final TimeUnit BOT_OUTBOUND_SHUTDOWN_UNIT = TimeUnit.SECONDS;
+
+    private static final long BOT_WRITER_SHUTDOWN_TIMEOUT = 10;
+    private static final TimeUnit BOT_WRITER_SHUTDOWN_UNIT = TimeUnit.SECONDS;
+
+    private static final long BOT_PROMPT_SCHEDULER_SHUTDOWN_TIMEOUT = 10;
+    private static final TimeUnit BOT_PROMPT_SCHEDULER_SHUTDOWN_UNIT = TimeUnit.SECONDS;
 
     private final ScheduledExecutorService botExecutor = Executors.newSingleThreadScheduledExecutor();
-    private final Set<Integer> hourlyRequestRegister = new HashSet<>();
+    // Wall-clock and Sheets jobs: polls, the new day, failure replay. Quick maintenance runs at fixed rate on botExecutor
+    private final PromptScheduler promptScheduler = new PromptScheduler();
+    private final PromptFanOut promptFanOut = new PromptFanOut(promptScheduler, BOT_POLL_MINUTE_START, BOT_POLL_MINUTE_END, this::sendHourlyPoll);
     private SelfReflectionBot selfReflectionBot;
+    private PollQueueStore pollQueueStore;
+    private UserDirectory userDirectory;
 
     public void start() throws TelegramApiException {
-        log.info("Starting Self-Reflection Bot application with user={} and mode={}", TARGET_USER_ID, APP_MODE);
+        log.info("Starting Self-Reflection Bot application with users={} and mode={}", TARGET_USER_ID, APP_MODE);
 
         TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
 
-        String sTargetUserId = TARGET_USER_ID;
-        long targetUserId = -1;
-
         try {
-            targetUserId = Long.parseLong(sTargetUserId);
-        } catch (NumberFormatException nfe) {
-            log.error("Couldn't parse target user ID <{}>", sTargetUserId);
+            userDirectory = UserDirectory.parse(TARGET_USER_ID, getTimezoneId(), ReflectionWriter.getLoggingStartHour(), ReflectionWriter.getLoggingEndHour(),
+                    SheetService.getSheetName());
+        } catch (IllegalArgumentException iae) {
+            log.error("Couldn't parse target user IDs: {}", iae.getMessage());
             return;
         }
 
-        selfReflectionBot = new SelfReflectionBot(TELEGRAM_BOT_API_TOKEN, targetUserId);
+        ReflectionWriter.registerSheetTargets(userDirectory.getProfiles());
+        selfReflectionBot = new SelfReflectionBot(TELEGRAM_BOT_API_TOKEN, userDirectory);
+        selfReflectionBot.registerRoutes();
 
         PollReflectionQueue pollReflectionQueue;
 
         try {
-            pollReflectionQueue = PollReflectionQueue.loadFromFile(DATA_QUEUE_DAT);
-            log.info("Poll queue successfully loaded from file {}", DATA_QUEUE_DAT);
+            pollQueueStore = PollQueueStore.open(DATA_QUEUE_DAT, LEGACY_DATA_QUEUE_SER);
+            pollReflectionQueue = pollQueueStore.getQueue();
+            log.info("Poll queue successfully loaded from file {}. Size <{}>", DATA_QUEUE_DAT, pollReflectionQueue.size());
+
+            int claimedCount = pollReflectionQueue.claimUnowned(userDirectory.getPrimaryUserId());
+            if (claimedCount > 0) {
+                log.info("{} poll(s) saved without an owner assigned to user={}", claimedCount, userDirectory.getPrimaryUserId());
+            }
         } catch (Exception e) {
             pollReflectionQueue = new PollReflectionQueue();
-            log.info("Starting with a fresh poll queue, file {} created", DATA_QUEUE_DAT);
+            log.error("Starting with a fresh poll queue which won't be saved, file {} couldn't be opened: {}", DATA_QUEUE_DAT, e.getMessage());
         }
 
         selfReflectionBot.linkPollQueue(pollReflectionQueue);
@@ -87,81 +128,120 @@ public class SelfReflectionBotApp {
 
         botsApi.registerBot(selfReflectionBot);
 
-        botExecutor.scheduleAtFixedRate(this::pollActivityTask, BOT_POLL_INITIAL_DELAY, BOT_POLL_INTERVAL, BOT_POLL_UNIT);
+        ReflectionWriter.resubmitUnacknowledged();
+
+        promptFanOut.scheduleAll(userDirectory.getProfiles());
+        // Also runs right away, so the first save of the day doesn't have to append its block
+        promptScheduler.schedule("new day", PromptScheduler.Recurrence.daily(getTimezoneId(), BOT_POLL_CLEANUP_TIME),
+                this::prepareNewDay, System.currentTimeMillis());
+        // Sheets calls may back off for minutes during an outage, so the replay stays off botExecutor
+        promptScheduler.schedule("failure replay", PromptScheduler.Recurrence.every(BOT_FAILURE_REPLAY_UNIT.toMillis(BOT_FAILURE_REPLAY_INTERVAL)),
+                this::replayFailures, System.currentTimeMillis() + BOT_FAILURE_REPLAY_UNIT.toMillis(BOT_FAILURE_REPLAY_INITIAL_DELAY));
         botExecutor.scheduleAtFixedRate(this::savePollQueue, BOT_POLL_SAVE_QUEUE_INITIAL_DELAY, BOT_POLL_SAVE_QUEUE_INTERVAL, BOT_POLL_SAVE_QUEUE_UNIT);
-        botExecutor.scheduleAtFixedRate(this::prepareNewDay, BOT_POLL_PREPARE_NEW_INITIAL_DELAY, BOT_POLL_PREPARE_NEW_INTERVAL, BOT_POLL_PREPARE_NEW_UNIT);
+        botExecutor.scheduleAtFixedRate(this::expirePolls, BOT_POLL_EXPIRY_INITIAL_DELAY, BOT_POLL_EXPIRY_INTERVAL, BOT_POLL_EXPIRY_UNIT);
+        botExecutor.scheduleAtFixedRate(this::reportPollRounds, BOT_POLL_REPORT_INITIAL_DELAY, BOT_POLL_REPORT_INTERVAL, BOT_POLL_REPORT_UNIT);
+        botExecutor.scheduleAtFixedRate(this::evictIdleSessions, BOT_SESSION_EVICTION_INITIAL_DELAY, BOT_SESSION_EVICTION_INTERVAL, BOT_SESSION_EVICTION_UNIT);
+        botExecutor.scheduleAtFixedRate(this::reportMetrics, BOT_METRICS_REPORT_INITIAL_DELAY, BOT_METRICS_REPORT_INTERVAL, BOT_METRICS_REPORT_UNIT);
 
         Runtime.getRuntime().addShutdownHook(new Thread(this::onShutdown));
     }
 
-    private void pollActivityTask() {
-        LocalDateTime now = LocalDateTime.now(getTimezoneId());
-        int hour = now.getHour();
-        int minute = now.getMinute();
+    private CompletableFuture<?> sendHourlyPoll(UserProfile profile, ZonedDateTime now) {
+        log.debug("Sending new hourly request to user={}", profile.userId());
+        CompletableFuture<?> hourlyPoll = selfReflectionBot.addPoll(profile.userId(), new Reflection(now));
 
-        int finalHour = (ReflectionWriter.getLoggingEndHour() % 24);
+        if (now.getHour() == profile.getFinalHour()) {
+            CompletableFuture<?> dayPoll = selfReflectionBot.addPoll(profile.userId(), new Reflection(now, ReflectionWriter.getOverallTimePeriod()));
+            return CompletableFuture.allOf(hourlyPoll, dayPoll);
+        }
 
-        if (hour >= ReflectionWriter.getLoggingStartHour() || hour == finalHour) {
-            if (minute >= BOT_POLL_MINUTE_START && minute <= BOT_POLL_MINUTE_END) {
-                if (!hourlyRequestRegister.contains(hour)) {
-                    log.info("Sending new hourly request");
-                    selfReflectionBot.addPoll(new Reflection(now));
+        return hourlyPoll;
+    }
 
-                    if (hour == finalHour) {
-                        selfReflectionBot.addPoll(new Reflection(now, ReflectionWriter.getOverallTimePeriod()));
-                    }
+    private void reportPollRounds() {
+        promptFanOut.reportCompletedRounds(System.currentTimeMillis());
+    }
 
-                    hourlyRequestRegister.add(hour);
-                }
+    private void prepareNewDay() {
+        int appendedCount = ReflectionWriter.provisionDayBlocks(userDirectory.getProfiles(), BOT_DAY_BLOCKS_AHEAD);
+        log.info("New day prepared, {} day block(s) appended", appendedCount);
+    }
+
+    private void expirePolls() {
+        PollReflectionQueue pollReflectionQueue = selfReflectionBot.getPollReflectionQueue();
+        try {
+            int expiredCount = pollReflectionQueue.expire(System.currentTimeMillis());
+            if (expiredCount > 0) {
+                log.info("{} poll(s) expired; queue size <{}>", expiredCount, pollReflectionQueue.size());
             }
+        } catch (NullPointerException npe) {
+            log.error("Couldn't expire old polls because queue was <null>");
+        } catch (Exception e) {
+            log.error("Poll expiry stopped due to an error: {}", e.getMessage());
         }
     }
 
-    private void prepareNewDay() {
-        LocalDateTime now = LocalDateTime.now(getTimezoneId());
-        int hour = now.getHour();
-
-        if (hour == BOT_POLL_CLEANUP_HOUR) {
-            hourlyRequestRegister.clear();
+    private void evictIdleSessions() {
+        int evictedCount = selfReflectionBot.evictIdleSessions();
+        if (evictedCount > 0) {
+            log.info("{} idle session(s) evicted; active sessions <{}>", evictedCount, selfReflectionBot.getSessionCount());
+        }
+    }
 
-            appendNewDay();
-            log.info("New day appended");
+    private void reportMetrics() {
+        log.debug(selfReflectionBot.getUpdateDispatcherStats());
+        log.debug("Outbound Telegram queue depth <{}>", selfReflectionBot.getOutboundQueueDepth());
+        log.debug("Sheets write queue depth <{}>, spilled to disk <{}>; file write queue depth <{}>",
+                ReflectionWriter.getSheetsQueueDepth(), ReflectionWriter.getSheetsSpilledCount(), ReflectionWriter.getFileQueueDepth());
 
-            PollReflectionQueue pollReflectionQueue = selfReflectionBot.getPollReflectionQueue();
-            try {
-                int initialSize = pollReflectionQueue.size();
-                pollReflectionQueue.cleanupOld();
-                int resultSize =  pollReflectionQueue.size();
-                log.info("Clean-up of request queue completed. Old size <{}>; new size <{}>", initialSize, resultSize);
-            } catch (NullPointerException npe) {
-                log.error("Couldn't clean old polls because queue was <null>");
-            }
+        if (ReflectionWriter.isSheetsBackpressured()) {
+            log.warn("Sheets writes are falling behind: queue depth <{}>, spilled to disk <{}>",
+                    ReflectionWriter.getSheetsQueueDepth(), ReflectionWriter.getSheetsSpilledCount());
         }
     }
 
     private void savePollQueue() {
+        if (pollQueueStore == null) {
+            return;
+        }
+
         try {
-            PollReflectionQueue pollReflectionQueue = selfReflectionBot.getPollReflectionQueue();
-            pollReflectionQueue.saveToFile(DATA_QUEUE_DAT);
-            log.info("Request queue successfully saved. Size <{}>", pollReflectionQueue.size());
+            pollQueueStore.flush();
         } catch (IOException ioex) {
-            log.error("Couldn't save queue file due to an error: {}", ioex.getMessage());
+            log.error("Couldn't save queue changes due to an error: {}", ioex.getMessage());
+        }
+    }
+
+    private void replayFailures() {
+        try {
+            ReflectionWriter.resubmitUnacknowledged();
+            FailureReplayJob.replay();
+        } catch (Exception e) {
+            log.error("Failure replay job stopped due to an error: {}", e.getMessage());
         }
     }
 
     private void onShutdown() {
-        savePollQueue();
+        promptScheduler.shutdown(BOT_PROMPT_SCHEDULER_SHUTDOWN_TIMEOUT, BOT_PROMPT_SCHEDULER_SHUTDOWN_UNIT);
+        selfReflectionBot.shutdownUpdateDispatcher();
+        // Prompts sent meanwhile still record their message ids in the poll queue log
+        selfReflectionBot.shutdownOutbound(BOT_OUTBOUND_SHUTDOWN_TIMEOUT, BOT_OUTBOUND_SHUTDOWN_UNIT);
+        if (pollQueueStore != null) {
+            try {
+                pollQueueStore.close();
+                log.info("Request queue successfully saved. Size <{}>", pollQueueStore.getQueue().size());
+            } catch (IOException ioex) {
+                log.error("Couldn't save queue file due to an error: {}", ioex.getMessage());
+            }
+        }
+        ReflectionWriter.shutdown(BOT_WRITER_SHUTDOWN_TIMEOUT, BOT_WRITER_SHUTDOWN_UNIT);
+        SheetService.shutdown();
     }
 
     public ZoneId getTimezoneId() {
         return ZoneId.of(BOT_TIMEZONE);
     }
 
-    public void appendNewDay() {
-        LocalDateTime dateTime = LocalDateTime.now(getTimezoneId());
-        ReflectionWriter.appendNewReflectionDay(dateTime);
-    }
-
     public SelfReflectionBot getSelfReflectionBot() {
         return selfReflectionBot;
     }
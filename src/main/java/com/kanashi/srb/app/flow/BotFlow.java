@@ -1,6 +1,7 @@
 package com.kanashi.srb.app.flow;
 
-import org.telegram.telegrambots.meta.api.objects.Update;
+import com.kanashi.srb.app.model.user.ChatSession;
+import com.kanashi.srb.telegram.bot.UpdateRouter;
 
 public interface BotFlow {
     // Flow control
@@ -9,6 +10,16 @@ public interface BotFlow {
     public void end();
 
     // Reactivity
-    public void handleUpdate(Update update);
+    public void handleUpdate(UpdateRouter.RoutedUpdate update);
     public boolean isFinished();
+
+    /*
+     * Router handler for updates which belong to whatever flow the chat is in; ignored if there's none
+     */
+    static void routeToActiveFlow(UpdateRouter.RoutedUpdate update, ChatSession session) {
+        BotFlow currentFlow = session.getActiveFlow();
+        if (currentFlow != null) {
+            currentFlow.handleUpdate(update);
+        }
+    }
 }
@@ -5,7 +5,7 @@ import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMa
 import com.kanashi.srb.telegram.bot.SelfReflectionBot;
 import com.kanashi.srb.telegram.bot.model.ext.CallbackQueryExt;
 import com.kanashi.srb.telegram.bot.model.menu.ScaledRateMenu;
-import org.telegram.telegrambots.meta.api.objects.Update;
+import com.kanashi.srb.telegram.bot.UpdateRouter;
 import com.kanashi.srb.app.model.reflection.Reflection;
 
 
@@ -21,6 +21,7 @@ public class PollActivityFlow implements BotFlow {
 
     private STAGE currentStage;
     private final SelfReflectionBot selfReflectionBot;
+    private final long chatId;
     private final Reflection reflection;
     private boolean isFinished = false;
 
@@ -39,12 +40,20 @@ public class PollActivityFlow implements BotFlow {
             <b>Ценность</b>: %s""";
     private final InlineKeyboardMarkup scaledRateKeyboard = new ScaledRateMenu().getKeyboard();
 
-    public PollActivityFlow(SelfReflectionBot selfReflectionBot, Reflection reflection) {
+    public PollActivityFlow(SelfReflectionBot selfReflectionBot, long chatId, Reflection reflection) {
         this.selfReflectionBot = selfReflectionBot;
+        this.chatId = chatId;
         this.reflection = reflection;
 
     }
 
+    /*
+     * Rating buttons are answered by the chat's active flow
+     */
+    public static void registerRoutes(UpdateRouter router) {
+        router.register(UpdateRouter.Kind.CALLBACK, ScaledRateMenu.getPurpose(), BotFlow::routeToActiveFlow);
+    }
+
     private String buildMessage(String message) {
         return ReflectionWriter.buildMessage(reflection, message);
     }
@@ -78,7 +87,7 @@ public class PollActivityFlow implements BotFlow {
     }
 
     @Override
-    public void handleUpdate(Update update) {
+    public void handleUpdate(UpdateRouter.RoutedUpdate update) {
         if (isFinished) {
             return;
         }
@@ -88,7 +97,7 @@ public class PollActivityFlow implements BotFlow {
              * Stage #1 - Ask if user ready to rate their activity
              */
             case STAGE.ACTIVITY -> {
-                selfReflectionBot.sendText(buildMessage(MESSAGE__ACTIVITY_NAME));
+                selfReflectionBot.sendTextAsync(chatId, buildMessage(MESSAGE__ACTIVITY_NAME));
                 move();
             }
 
@@ -96,10 +105,10 @@ public class PollActivityFlow implements BotFlow {
              * Stage #2 - Record activity name and ask to rate pleasure
              */
             case STAGE.ESTIMATE_PLEASURE -> {
-                if (update.hasMessage() && update.getMessage().hasText()) {
-                    String txt = update.getMessage().getText();
+                if (update.kind() == UpdateRouter.Kind.TEXT) {
+                    String txt = update.getText();
                     reflection.setActivity(txt);
-                    selfReflectionBot.sendMenu(buildMessage(MESSAGE__RATE_PLEASURE), scaledRateKeyboard);
+                    selfReflectionBot.sendMenuAsync(chatId, buildMessage(MESSAGE__RATE_PLEASURE), scaledRateKeyboard);
                     move();
                 }
             }
@@ -108,8 +117,8 @@ public class PollActivityFlow implements BotFlow {
              * Stage #3 - Record pleasure and ask to rate value
              */
             case STAGE.ESTIMATE_VALUE -> {
-                if (update.hasCallbackQuery()) {
-                    CallbackQueryExt callbackQueryExt = CallbackQueryExt.extend(update.getCallbackQuery());
+                if (update.kind() == UpdateRouter.Kind.CALLBACK) {
+                    CallbackQueryExt callbackQueryExt = update.callback();
 
                     if (!callbackQueryExt.hasPurpose(ScaledRateMenu.getPurpose())) {
                         break;
@@ -117,14 +126,14 @@ public class PollActivityFlow implements BotFlow {
 
                     // Handle menu callback - edit message and set rate
                     String rate = ScaledRateMenu.getRate(callbackQueryExt);
-                    selfReflectionBot.editMessageCallback(callbackQueryExt.getOriginal(), buildMessage(MESSAGE__SHOW_PLEASURE.replace(MESSAGE_UTILITY__RATE_TEMPLATE,rate)));
+                    // Wrap up callback handler first, then edit and send the next menu without waiting for each other
+                    selfReflectionBot.answerCallbackAsync(callbackQueryExt.getOriginal());
+                    selfReflectionBot.editMessageCallbackAsync(callbackQueryExt.getOriginal(), buildMessage(MESSAGE__SHOW_PLEASURE.replace(MESSAGE_UTILITY__RATE_TEMPLATE,rate)));
                     move();
                     reflection.setPleasure(rate);
-                    // Wrap up callback handler
-                    selfReflectionBot.answerCallback(callbackQueryExt.getOriginal());
 
                     // Next menu
-                    selfReflectionBot.sendMenu(MESSAGE__RATE_VALUE, scaledRateKeyboard);
+                    selfReflectionBot.sendMenuAsync(chatId, MESSAGE__RATE_VALUE, scaledRateKeyboard);
                 }
             }
 
@@ -132,8 +141,8 @@ public class PollActivityFlow implements BotFlow {
              * Stage #4 [Final] - Record value, save record to Google Sheets and give confirmation message
              */
             case STAGE.CONCLUSION -> {
-                if (update.hasCallbackQuery()) {
-                    CallbackQueryExt callbackQueryExt = CallbackQueryExt.extend(update.getCallbackQuery());
+                if (update.kind() == UpdateRouter.Kind.CALLBACK) {
+                    CallbackQueryExt callbackQueryExt = update.callback();
 
                     if (!callbackQueryExt.hasPurpose(ScaledRateMenu.getPurpose())) {
                         break;
@@ -141,15 +150,15 @@ public class PollActivityFlow implements BotFlow {
 
                     // Handle menu callback - edit message and set rate
                     String rate = ScaledRateMenu.getRate(callbackQueryExt);
-                    selfReflectionBot.editMessageCallback(callbackQueryExt.getOriginal(), buildMessage(MESSAGE__SHOW_VALUE.replace(MESSAGE_UTILITY__RATE_TEMPLATE,rate)));
+                    // Wrap up callback handler first, then edit without waiting for it
+                    selfReflectionBot.answerCallbackAsync(callbackQueryExt.getOriginal());
+                    selfReflectionBot.editMessageCallbackAsync(callbackQueryExt.getOriginal(), buildMessage(MESSAGE__SHOW_VALUE.replace(MESSAGE_UTILITY__RATE_TEMPLATE,rate)));
                     move();
                     reflection.setValue(rate);
-                    // Wrap up callback handler
-                    selfReflectionBot.answerCallback(callbackQueryExt.getOriginal());
 
                     // Next actions
                     reflection.save();
-                    selfReflectionBot.sendText(buildMessage(String.format(MESSAGE__SAVE_CONFIRMATION_FORMAT,
+                    selfReflectionBot.sendTextAsync(chatId, buildMessage(String.format(MESSAGE__SAVE_CONFIRMATION_FORMAT,
                                         reflection.getActivity(),
                                         reflection.getPleasure(),
                                         reflection.getValue())));
@@ -0,0 +1,100 @@
+package com.kanashi.srb.app.model.reflection;
+
+import com.kanashi.srb.app.utility.DateTextFormatter;
+import com.kanashi.srb.google.api.SheetRowIndex;
+import com.kanashi.srb.google.api.SheetService;
+import com.kanashi.srb.google.api.SheetTarget;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Resolves where a reflection goes in the sheet: row of the day block from the row index,
+ * period column from the layout. Each day block's header is read once per run to confirm both
+ */
+class DayBlockLocator {
+    private static final Logger log = LogManager.getLogger(DayBlockLocator.class);
+    private static final String SHEETS_DATE_COLUMN_RANGE = "A:A";
+
+    private static final Map<SheetTarget, Map<String, DayBlock>> checkedBlocks = new ConcurrentHashMap<>();
+
+    /*
+     * editedColumns is null when the header follows the layout, otherwise holds the columns found by a scan
+     */
+    record DayBlock(int rowIdx, @Nullable Map<String, Integer> editedColumns) {
+        int getPeriodColumnIdx(String timePeriod) {
+            if (editedColumns == null) {
+                return ReflectionSheetLayout.getPeriodColumnIdx(timePeriod);
+            }
+
+            return editedColumns.getOrDefault(timePeriod, -1);
+        }
+    }
+
+    private static Map<String, DayBlock> getCheckedBlocks(SheetTarget target) {
+        return checkedBlocks.computeIfAbsent(target, t -> new ConcurrentHashMap<>());
+    }
+
+    static void register(SheetTarget target, LocalDateTime dateTime, int rowIdx) {
+        String date = DateTextFormatter.getDate(dateTime);
+        SheetRowIndex.forTarget(target).put(date, rowIdx);
+        getCheckedBlocks(target).put(date, new DayBlock(rowIdx, null));
+    }
+
+    @Nullable
+    static DayBlock locate(SheetTarget target, LocalDateTime dateTime) throws NullPointerException, IOException {
+        String date = DateTextFormatter.getDate(dateTime);
+        SheetRowIndex rowIndex = SheetRowIndex.forTarget(target);
+
+        int rowIdx = rowIndex.find(date);
+        DayBlock dayBlock = getCheckedBlocks(target).get(date);
+        if (dayBlock != null && dayBlock.rowIdx() == rowIdx) {
+            return dayBlock;
+        }
+
+        if (rowIdx >= 0) {
+            dayBlock = checkHeader(target, date, rowIdx);
+            if (dayBlock != null) {
+                return dayBlock;
+            }
+
+            log.warn("Row index mismatch for {} at row {}, re-scanning the sheet", date, rowIdx);
+        }
+
+        rowIndex.rebuild(SheetService.getColumnValues(target, SHEETS_DATE_COLUMN_RANGE));
+        rowIdx = rowIndex.find(date);
+
+        return rowIdx < 0 ? null : checkHeader(target, date, rowIdx);
+    }
+
+    @Nullable
+    private static DayBlock checkHeader(SheetTarget target, String date, int rowIdx) throws NullPointerException, IOException {
+        List<String> headerRow = SheetService.getRowValues(target, rowIdx);
+
+        if (headerRow.size() <= ReflectionSheetLayout.DATE_COLUMN_IDX
+                || !headerRow.get(ReflectionSheetLayout.DATE_COLUMN_IDX).equals(date)) {
+            getCheckedBlocks(target).remove(date);
+            return null;
+        }
+
+        Map<String, Integer> editedColumns = null;
+        if (!ReflectionSheetLayout.matchesHeader(headerRow)) {
+            log.warn("Header of day block {} differs from the layout, using scanned columns", date);
+            editedColumns = new HashMap<>();
+            for (int columnIdx = headerRow.size() - 1; columnIdx >= 0; --columnIdx) {
+                editedColumns.put(headerRow.get(columnIdx), columnIdx);
+            }
+        }
+
+        DayBlock dayBlock = new DayBlock(rowIdx, editedColumns);
+        getCheckedBlocks(target).put(date, dayBlock);
+        return dayBlock;
+    }
+}
@@ -0,0 +1,80 @@
+package com.kanashi.srb.app.model.reflection;
+
+import com.kanashi.srb.app.utility.DateTextFormatter;
+import com.kanashi.srb.google.api.SheetRowIndex;
+import com.kanashi.srb.google.api.SheetService;
+import com.kanashi.srb.google.api.SheetTarget;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/*
+ * Creates day blocks ahead of time, so saving a reflection only updates cells of a block which already exists.
+ * All missing blocks of a sheet go out in one append request; their rows follow from the appended range,
+ * so they're registered in the row index without reading the sheet back.
+ * Serialized, so the nightly run and the pipeline's fallback never append the same day twice
+ */
+class DayBlockProvisioner {
+    private static final Logger log = LogManager.getLogger(DayBlockProvisioner.class);
+    private static final String SHEETS_DATE_COLUMN_RANGE = "A:A";
+
+    private static final Object lock = new Object();
+
+    private DayBlockProvisioner() {
+    }
+
+    /*
+     * Appends blocks of the dates the sheet doesn't have yet, in date order. Returns the number of appended blocks.
+     * With refreshIndex the row index is re-read from the sheet first, so blocks added by other means aren't duplicated
+     */
+    static int provision(SheetTarget target, SortedSet<LocalDate> dates, boolean refreshIndex) throws NullPointerException, IOException {
+        synchronized (lock) {
+            SheetRowIndex rowIndex = SheetRowIndex.forTarget(target);
+            if (refreshIndex) {
+                rowIndex.rebuild(SheetService.getColumnValues(target, SHEETS_DATE_COLUMN_RANGE));
+            }
+
+            SortedSet<LocalDate> missingDates = new TreeSet<>();
+            for (LocalDate date : dates) {
+                if (rowIndex.find(DateTextFormatter.getDate(date.atStartOfDay())) < 0) {
+                    missingDates.add(date);
+                }
+            }
+
+            if (missingDates.isEmpty()) {
+                return 0;
+            }
+
+            List<List<Object>> rows = new ArrayList<>(missingDates.size() * ReflectionSheetLayout.DAY_BLOCK_HEIGHT);
+            for (LocalDate date : missingDates) {
+                rows.addAll(ReflectionSheetLayout.buildDayBlock(date.atStartOfDay()));
+            }
+
+            int blockRowIdx = SheetService.appendRows(target, rows);
+            for (LocalDate date : missingDates) {
+                DayBlockLocator.register(target, date.atStartOfDay(), blockRowIdx);
+                blockRowIdx += ReflectionSheetLayout.DAY_BLOCK_HEIGHT;
+            }
+
+            log.info("{} day block(s) appended to sheet {}: {} - {}", missingDates.size(), target.sheetName(),
+                    missingDates.first(), missingDates.last());
+            return missingDates.size();
+        }
+    }
+
+    /*
+     * Row of the date's block, appending it if the index doesn't know it
+     */
+    static int provisionDay(SheetTarget target, LocalDate date) throws NullPointerException, IOException {
+        synchronized (lock) {
+            provision(target, new TreeSet<>(List.of(date)), false);
+            return SheetRowIndex.forTarget(target).find(DateTextFormatter.getDate(date.atStartOfDay()));
+        }
+    }
+}
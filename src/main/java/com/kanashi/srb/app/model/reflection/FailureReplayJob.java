@@ -0,0 +1,170 @@
+package com.kanashi.srb.app.model.reflection;
+
+import com.kanashi.srb.app.utility.DateTextFormatter;
+import com.kanashi.srb.google.api.SheetTarget;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/*
+ * Replays reflections which failed to reach Google Sheets (text files in data/failures/) back to the sheet.
+ * Files are grouped by spreadsheet and date, each day block is written with one batched update,
+ * applied files are moved to data/failures/applied/. Files which can't be parsed or placed in the sheet
+ * are moved to data/failures/rejected/, so they aren't retried every run
+ */
+public class FailureReplayJob {
+    private static final Logger log = LogManager.getLogger(FailureReplayJob.class);
+    private static final String APPLIED_FOLDER = "applied";
+    private static final String REJECTED_FOLDER = "rejected";
+    // A younger incomplete file may still be being written
+    private static final long INCOMPLETE_FILE_MIN_AGE_MILLIS = 60 * 1000L;
+    private static final int MAX_FILES_PER_RUN = 1000;
+
+    private static final String KEY_TARGET_DATE = "targetDate";
+    private static final String KEY_TARGET_TIME_PERIOD = "targetTimePeriod";
+    private static final String KEY_TIMESTAMP = "timestamp";
+    private static final String KEY_USER_ID = "userId";
+    private static final String KEY_ACTIVITY = "activity";
+    private static final String KEY_PLEASURE = "pleasure";
+    private static final String KEY_VALUE = "value";
+    private static final Set<String> KNOWN_KEYS = Set.of(KEY_TARGET_DATE, KEY_TARGET_TIME_PERIOD, KEY_TIMESTAMP, KEY_USER_ID,
+            "weekDay", KEY_ACTIVITY, KEY_PLEASURE, KEY_VALUE);
+
+    /*
+     * Returns number of reflections written back to the sheet
+     */
+    public static int replay() {
+        Path failuresFolder = Paths.get(ReflectionWriter.getFailuresFolder());
+        if (!Files.isDirectory(failuresFolder)) {
+            return 0;
+        }
+
+        Map<SheetTarget, Map<String, Map<Reflection, Path>>> groups = new LinkedHashMap<>();
+        int fileCount = 0;
+
+        try (DirectoryStream<Path> failureFiles = Files.newDirectoryStream(failuresFolder, "*.txt")) {
+            for (Path failureFile : failureFiles) {
+                if (fileCount++ >= MAX_FILES_PER_RUN) {
+                    break;
+                }
+
+                Reflection reflection = parse(failureFile);
+                if (reflection == null) {
+                    if (isSettled(failureFile)) {
+                        moveTo(failureFile, REJECTED_FOLDER);
+                    }
+                    continue;
+                }
+
+                groups.computeIfAbsent(ReflectionWriter.getSheetTarget(reflection), t -> new LinkedHashMap<>())
+                        .computeIfAbsent(DateTextFormatter.getDate(reflection.getDateTime()), d -> new LinkedHashMap<>())
+                        .put(reflection, failureFile);
+            }
+        } catch (IOException ioex) {
+            log.error("Couldn't list failures folder {}: {}", failuresFolder, ioex.getMessage());
+            return 0;
+        }
+
+        int replayedCount = 0;
+        for (Map.Entry<SheetTarget, Map<String, Map<Reflection, Path>>> targetGroup : groups.entrySet()) {
+            for (Map.Entry<String, Map<Reflection, Path>> dayGroup : targetGroup.getValue().entrySet()) {
+                Map<Reflection, Path> dayFiles = dayGroup.getValue();
+
+                try {
+                    List<Reflection> unplaced = ReflectionWritePipeline.writeBatch(targetGroup.getKey(), new ArrayList<>(dayFiles.keySet()));
+                    for (Reflection reflection : unplaced) {
+                        moveTo(dayFiles.remove(reflection), REJECTED_FOLDER);
+                    }
+                } catch (NullPointerException | IOException ex) {
+                    log.error("Couldn't replay failures for {}: {}", dayGroup.getKey(), ex.getMessage());
+                    continue;
+                }
+
+                dayFiles.values().forEach(failureFile -> moveTo(failureFile, APPLIED_FOLDER));
+                replayedCount += dayFiles.size();
+            }
+        }
+
+        if (replayedCount > 0) {
+            log.info("Replayed {} failed reflection(s) to Google Sheets", replayedCount);
+        }
+
+        return replayedCount;
+    }
+
+    @Nullable
+    private static Reflection parse(Path failureFile) {
+        Map<String, String> values = new HashMap<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(failureFile, StandardCharsets.UTF_8)) {
+            String line;
+            String lastKey = null;
+            while ((line = reader.readLine()) != null) {
+                int separatorIdx = line.indexOf('=');
+                String key = separatorIdx > 0 ? line.substring(0, separatorIdx) : null;
+
+                if (key != null && KNOWN_KEYS.contains(key)) {
+                    values.put(key, line.substring(separatorIdx + 1));
+                    lastKey = key;
+                } else if (lastKey != null) {
+                    // Multi-line activity text
+                    values.merge(lastKey, line, (previous, next) -> previous + "\n" + next);
+                }
+            }
+        } catch (IOException ioex) {
+            log.warn("Couldn't read failure file {}: {}", failureFile, ioex.getMessage());
+            return null;
+        }
+
+        // "value" is written last - without it the file is incomplete or still being written
+        if (!values.containsKey(KEY_TARGET_DATE) || !values.containsKey(KEY_TARGET_TIME_PERIOD) || !values.containsKey(KEY_VALUE)) {
+            log.warn("Skipping incomplete failure file {}", failureFile);
+            return null;
+        }
+
+        try {
+            LocalDateTime dateTime = DateTextFormatter.parseDate(values.get(KEY_TARGET_DATE)).atStartOfDay();
+            long timestamp = Long.parseLong(values.getOrDefault(KEY_TIMESTAMP, "0"));
+
+            Reflection reflection = new Reflection(dateTime, timestamp, values.get(KEY_TARGET_TIME_PERIOD));
+            reflection.setUserId(Long.parseLong(values.getOrDefault(KEY_USER_ID, String.valueOf(Reflection.NO_USER))));
+            reflection.setActivity(values.getOrDefault(KEY_ACTIVITY, ""));
+            reflection.setPleasure(values.getOrDefault(KEY_PLEASURE, ""));
+            reflection.setValue(values.get(KEY_VALUE));
+            return reflection;
+        } catch (DateTimeParseException | NumberFormatException ex) {
+            log.warn("Skipping malformed failure file {}: {}", failureFile, ex.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isSettled(Path failureFile) {
+        try {
+            return System.currentTimeMillis() - Files.getLastModifiedTime(failureFile).toMillis() > INCOMPLETE_FILE_MIN_AGE_MILLIS;
+        } catch (IOException ioex) {
+            return false;
+        }
+    }
+
+    private static void moveTo(Path failureFile, String subfolder) {
+        try {
+            Path targetFolder = failureFile.resolveSibling(subfolder);
+            Files.createDirectories(targetFolder);
+            Files.move(failureFile, targetFolder.resolve(failureFile.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioex) {
+            log.warn("Couldn't move failure file {} to {}: {}", failureFile, subfolder, ioex.getMessage());
+        }
+    }
+}
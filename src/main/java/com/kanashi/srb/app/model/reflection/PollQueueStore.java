@@ -0,0 +1,317 @@
+package com.kanashi.srb.app.model.reflection;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/*
+ * Persists PollReflectionQueue incrementally: every add/remove is appended to a delta log,
+ * which is compacted into a snapshot in the background once enough changes pile up.
+ *
+ * Compaction starts a new log generation first and then copies the queue, so the snapshot covers
+ * everything in older generations; replaying add/remove is idempotent, so changes that are both in
+ * the snapshot and in the newer log are harmless. Loading replays the snapshot plus remaining logs
+ */
+public class PollQueueStore implements PollReflectionQueue.Listener, Closeable {
+    private static final Logger log = LogManager.getLogger(PollQueueStore.class);
+
+    private static final byte OP_ADD = 1;
+    // Owner user id and reflection id
+    private static final byte OP_REMOVE = 2;
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final int COMPACTION_THRESHOLD = 1000;
+    private static final long COMPACTION_SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final String snapshotFile;
+    private final Path logFolder;
+    private final String logPrefix;
+    private final PollReflectionQueue queue;
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor();
+    private final Object compactionLock = new Object();
+
+    // Guarded by logLock
+    private final Object logLock = new Object();
+    private FileOutputStream logFile;
+    private DataOutputStream logOut;
+    private long logGeneration = 0L;
+    private int recordsSinceCompaction = 0;
+    private boolean compactionScheduled = false;
+
+    private PollQueueStore(String snapshotFile, PollReflectionQueue queue) {
+        Path snapshotPath = Paths.get(snapshotFile).toAbsolutePath();
+        this.snapshotFile = snapshotFile;
+        this.logFolder = snapshotPath.getParent();
+        this.logPrefix = snapshotPath.getFileName() + ".log.";
+        this.queue = queue;
+    }
+
+    /*
+     * Loads the queue from the snapshot and delta logs, writes a fresh snapshot and starts a new log.
+     * If there's no snapshot yet but a queue saved by an older version exists under legacySnapshotFile,
+     * it's converted once and the old file is kept with a ".migrated" suffix
+     */
+    public static PollQueueStore open(String snapshotFile, @Nullable String legacySnapshotFile) throws IOException {
+        Files.createDirectories(Paths.get(snapshotFile).toAbsolutePath().getParent());
+
+        if (legacySnapshotFile != null && !Files.exists(Paths.get(snapshotFile)) && Files.exists(Paths.get(legacySnapshotFile))) {
+            migrate(legacySnapshotFile, snapshotFile);
+        }
+
+        PollQueueStore store = load(snapshotFile);
+        store.queue.setListener(store);
+        store.compact();
+
+        return store;
+    }
+
+    private static PollQueueStore load(String snapshotFile) throws IOException {
+        PollReflectionQueue queue;
+        if (Files.exists(Paths.get(snapshotFile))) {
+            try {
+                queue = PollReflectionQueue.loadFromFile(snapshotFile);
+            } catch (ClassNotFoundException | ClassCastException ex) {
+                throw new IOException("Couldn't read poll queue snapshot " + snapshotFile + ": " + ex.getMessage());
+            }
+        } else {
+            queue = new PollReflectionQueue();
+        }
+
+        PollQueueStore store = new PollQueueStore(snapshotFile, queue);
+        TreeMap<Long, Path> logs = store.listLogs();
+        for (Path logPath : logs.values()) {
+            store.replay(logPath);
+        }
+
+        store.logGeneration = logs.isEmpty() ? 0L : logs.lastKey();
+        return store;
+    }
+
+    private static void migrate(String legacySnapshotFile, String snapshotFile) throws IOException {
+        PollQueueStore legacyStore = load(legacySnapshotFile);
+        legacyStore.queue.saveToFile(snapshotFile);
+
+        for (Path logPath : legacyStore.listLogs().values()) {
+            Files.deleteIfExists(logPath);
+        }
+
+        Path legacyPath = Paths.get(legacySnapshotFile);
+        Files.move(legacyPath, legacyPath.resolveSibling(legacyPath.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+
+        log.info("Poll queue migrated from {} to {}; size <{}>", legacySnapshotFile, snapshotFile, legacyStore.queue.size());
+    }
+
+    public PollReflectionQueue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public void onAdded(Reflection reflection) {
+        try {
+            append(OP_ADD, ReflectionCodec.encode(reflection));
+        } catch (IOException ioex) {
+            log.error("Couldn't encode poll queue change for {}: {}", reflection.getId(), ioex.getMessage());
+        }
+    }
+
+    @Override
+    public void onRemoved(Reflection reflection) {
+        ReflectionId id = reflection.getReflectionId();
+        append(OP_REMOVE, ByteBuffer.allocate(3 * Long.BYTES)
+                .putLong(reflection.getUserId())
+                .putLong(id.high())
+                .putLong(id.low())
+                .array());
+    }
+
+    /*
+     * Makes logged changes durable; cost depends only on what changed since the last flush
+     */
+    public void flush() throws IOException {
+        synchronized (logLock) {
+            if (logOut != null) {
+                logOut.flush();
+                logFile.getFD().sync();
+            }
+        }
+    }
+
+    public void compactAsync() {
+        synchronized (logLock) {
+            if (compactionScheduled) {
+                return;
+            }
+            compactionScheduled = true;
+        }
+
+        compactionExecutor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException ioex) {
+                log.error("Poll queue compaction failed: {}", ioex.getMessage());
+            }
+        });
+    }
+
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            long compactedGeneration;
+            synchronized (logLock) {
+                compactionScheduled = false;
+                compactedGeneration = logGeneration;
+                openNextLog();
+            }
+
+            // Copy is taken under the queue's lock, the file is written outside of it
+            queue.saveToFile(snapshotFile);
+
+            for (var logEntry : listLogs().headMap(compactedGeneration, true).entrySet()) {
+                Files.deleteIfExists(logEntry.getValue());
+            }
+
+            log.debug("Poll queue compacted into {}; size <{}>", snapshotFile, queue.size());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(COMPACTION_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        queue.setListener(null);
+
+        synchronized (logLock) {
+            closeLog();
+        }
+    }
+
+    private void append(byte op, byte[] payload) {
+        synchronized (logLock) {
+            if (logOut == null) {
+                return;
+            }
+
+            try {
+                logOut.writeByte(op);
+                logOut.writeInt(payload.length);
+                logOut.writeInt(checksum(op, payload));
+                logOut.write(payload);
+            } catch (IOException ioex) {
+                log.error("Couldn't append poll queue change to the log: {}", ioex.getMessage());
+                return;
+            }
+
+            if (++recordsSinceCompaction >= COMPACTION_THRESHOLD) {
+                recordsSinceCompaction = 0;
+                compactAsync();
+            }
+        }
+    }
+
+    private void openNextLog() throws IOException {
+        closeLog();
+
+        logGeneration++;
+        Path logPath = logFolder.resolve(logPrefix + logGeneration);
+        logFile = new FileOutputStream(logPath.toFile(), true);
+        logOut = new DataOutputStream(new BufferedOutputStream(logFile));
+        recordsSinceCompaction = 0;
+    }
+
+    private void closeLog() throws IOException {
+        if (logOut != null) {
+            logOut.flush();
+            logFile.getFD().sync();
+            logOut.close();
+            logOut = null;
+            logFile = null;
+        }
+    }
+
+    private TreeMap<Long, Path> listLogs() throws IOException {
+        TreeMap<Long, Path> logs = new TreeMap<>();
+
+        try (DirectoryStream<Path> logFiles = Files.newDirectoryStream(logFolder, logPrefix + "*")) {
+            for (Path logPath : logFiles) {
+                try {
+                    logs.put(Long.parseLong(logPath.getFileName().toString().substring(logPrefix.length())), logPath);
+                } catch (NumberFormatException nfe) {
+                    log.warn("Skipping unknown poll queue log {}", logPath);
+                }
+            }
+        }
+
+        return logs;
+    }
+
+    /*
+     * Applies logged changes to the queue; stops at a torn or corrupted record
+     */
+    private void replay(Path logPath) throws IOException {
+        int appliedCount = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+            while (true) {
+                byte op;
+                byte[] payload;
+                int expectedChecksum;
+
+                try {
+                    op = in.readByte();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_BYTES) {
+                        log.warn("Poll queue log {} is corrupted after {} changes", logPath, appliedCount);
+                        break;
+                    }
+
+                    expectedChecksum = in.readInt();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException eofex) {
+                    break;
+                }
+
+                if (checksum(op, payload) != expectedChecksum) {
+                    log.warn("Poll queue log {} has a torn record after {} changes", logPath, appliedCount);
+                    break;
+                }
+
+                switch (op) {
+                    case OP_ADD -> queue.add(ReflectionCodec.decode(payload));
+                    case OP_REMOVE -> {
+                        ByteBuffer removal = ByteBuffer.wrap(payload);
+                        long userId = removal.getLong();
+                        queue.removeById(userId, new ReflectionId(removal.getLong(), removal.getLong()));
+                    }
+                    default -> log.warn("Unknown poll queue log operation {}", op);
+                }
+                appliedCount++;
+            }
+        }
+
+        log.info("Replayed {} poll queue change(s) from {}", appliedCount, logPath);
+    }
+
+    private static int checksum(byte op, byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(op);
+        crc32.update(ByteBuffer.wrap(payload));
+        return (int) crc32.getValue();
+    }
+}
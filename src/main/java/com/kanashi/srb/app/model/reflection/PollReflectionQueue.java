@@ -1,60 +1,252 @@
 package com.kanashi.srb.app.model.reflection;
 
+import com.kanashi.srb.app.utility.TimingWheel;
+
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/*
+ * Pending reflections partitioned by user. Every partition has its own lock, index and expiry wheel,
+ * so one user's callbacks never wait for another user's changes, expiry or a snapshot copy
+ */
 public class PollReflectionQueue implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
 
-    private transient final int MAX_SIZE = 10000;
-    private transient final long MAX_AGE_MILLIS = 7 * (24 * 60 * 60 * 1000L); // 7 days
+    private static final int MAX_SIZE_PER_USER = 10000;
+    private static final long MAX_AGE_MILLIS = 7 * (24 * 60 * 60 * 1000L); // 7 days
+
+    private static final int SNAPSHOT_MAGIC = 0x53524251; // "SRBQ"
+    private static final byte SNAPSHOT_VERSION = 1;
+
+    // 64 one-minute slots per level, 3 levels cover ~180 days of deadlines
+    private static final long EXPIRY_TICK_MILLIS = 60 * 1000L;
+    private static final int EXPIRY_WHEEL_SIZE = 64;
+    private static final int EXPIRY_WHEEL_LEVELS = 3;
+
+    // Java serialization is only kept to read queues saved before the binary snapshot format
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("requests", LinkedList.class)
+    };
+
+    private transient ConcurrentHashMap<Long, UserPartition> partitions = new ConcurrentHashMap<>();
+    private transient volatile Listener listener;
+    private transient volatile ExpiryListener expiryListener;
+
+    /*
+     * Notified about every change while the partition's lock is held, in the order changes happen within a user
+     */
+    public interface Listener {
+        void onAdded(Reflection reflection);
+        void onRemoved(Reflection reflection);
+    }
+
+    /*
+     * Notified after a reflection has been dropped because it got too old; called outside of partition locks
+     */
+    public interface ExpiryListener {
+        void onExpired(Reflection reflection);
+    }
+
+    /*
+     * Reflections of one user: id -> expiry timeout holding the reflection, iteration order is insertion (age) order
+     */
+    private final class UserPartition {
+        private final LinkedHashMap<ReflectionId, TimingWheel.Timeout<Reflection>> requests = new LinkedHashMap<>();
+        private final TimingWheel<Reflection> expiryWheel =
+                new TimingWheel<>(EXPIRY_TICK_MILLIS, EXPIRY_WHEEL_SIZE, EXPIRY_WHEEL_LEVELS, System.currentTimeMillis());
+
+        private synchronized void add(Reflection reflection, boolean notify) {
+            if (requests.size() >= MAX_SIZE_PER_USER && !requests.containsKey(reflection.getReflectionId())) {
+                removeFirst();
+            }
+
+            TimingWheel.Timeout<Reflection> previous = requests.put(reflection.getReflectionId(),
+                    expiryWheel.schedule(reflection, reflection.getTimestamp() + MAX_AGE_MILLIS));
+            if (previous != null) {
+                expiryWheel.cancel(previous);
+            }
+
+            Listener currentListener = listener;
+            if (notify && currentListener != null) {
+                currentListener.onAdded(reflection);
+            }
+        }
+
+        private synchronized boolean refresh(Reflection reflection) {
+            if (!requests.containsKey(reflection.getReflectionId())) {
+                return false;
+            }
+
+            Listener currentListener = listener;
+            if (currentListener != null) {
+                currentListener.onAdded(reflection);
+            }
+            return true;
+        }
+
+        @Nullable
+        private synchronized Reflection get(ReflectionId reflectionId) {
+            TimingWheel.Timeout<Reflection> timeout = requests.get(reflectionId);
+            return timeout == null ? null : timeout.getItem();
+        }
+
+        @Nullable
+        private synchronized Reflection remove(ReflectionId reflectionId) {
+            TimingWheel.Timeout<Reflection> timeout = requests.remove(reflectionId);
+            if (timeout == null) {
+                return null;
+            }
+
+            expiryWheel.cancel(timeout);
+            notifyRemoved(timeout.getItem());
+            return timeout.getItem();
+        }
+
+        @Nullable
+        private synchronized Reflection removeFirst() {
+            Iterator<TimingWheel.Timeout<Reflection>> iterator = requests.values().iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+
+            TimingWheel.Timeout<Reflection> first = iterator.next();
+            iterator.remove();
+            expiryWheel.cancel(first);
+            notifyRemoved(first.getItem());
+            return first.getItem();
+        }
+
+        private synchronized List<Reflection> expire(long nowMillis) {
+            List<Reflection> expired = expiryWheel.advance(nowMillis);
+            for (Reflection reflection : expired) {
+                requests.remove(reflection.getReflectionId());
+                notifyRemoved(reflection);
+            }
+            return expired;
+        }
+
+        private synchronized int size() {
+            return requests.size();
+        }
+
+        private synchronized void copyTo(List<Reflection> reflections) {
+            requests.values().forEach(timeout -> reflections.add(timeout.getItem()));
+        }
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setExpiryListener(@Nullable ExpiryListener expiryListener) {
+        this.expiryListener = expiryListener;
+    }
 
-    private final LinkedList<Reflection> requests = new LinkedList<>();
+    private UserPartition partition(long userId) {
+        return partitions.computeIfAbsent(userId, id -> new UserPartition());
+    }
 
-    public synchronized void add(Reflection req) {
-        if (requests.size() >= MAX_SIZE) {
-            requests.removeFirst();
+    private void notifyRemoved(Reflection reflection) {
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.onRemoved(reflection);
         }
-        requests.addLast(req);
     }
 
-    public synchronized Reflection getNext() {
-        return requests.pollFirst();
+    /*
+     * Adds to the partition of reflection's user; the oldest reflection of that user is dropped when the user is at the quota
+     */
+    public void add(Reflection req) {
+        partition(req.getUserId()).add(req, true);
+    }
+
+    /*
+     * Re-announces a reflection changed after it was added (e.g. its prompt got sent) so listeners record the change.
+     * Does nothing if the reflection has been answered or dropped meanwhile. Returns true if it's still queued
+     */
+    public boolean refresh(Reflection reflection) {
+        UserPartition partition = partitions.get(reflection.getUserId());
+        return partition != null && partition.refresh(reflection);
     }
 
     @Nullable
-    public synchronized Reflection getById(String id) {
-        for (Reflection reflection : requests) {
-            if (reflection.getId().equals(id)) {
-                return reflection;
-            }
+    public Reflection getNext(long userId) {
+        UserPartition partition = partitions.get(userId);
+        return partition == null ? null : partition.removeFirst();
+    }
+
+    @Nullable
+    public Reflection getById(long userId, String id) {
+        ReflectionId reflectionId = ReflectionId.parse(id);
+        UserPartition partition = partitions.get(userId);
+        return reflectionId == null || partition == null ? null : partition.get(reflectionId);
+    }
+
+    public void removeById(long userId, String id) {
+        ReflectionId reflectionId = ReflectionId.parse(id);
+        if (reflectionId != null) {
+            removeById(userId, reflectionId);
+        }
+    }
+
+    void removeById(long userId, ReflectionId reflectionId) {
+        UserPartition partition = partitions.get(userId);
+        if (partition != null) {
+            partition.remove(reflectionId);
+        }
+    }
+
+    /*
+     * Moves reflections saved before they had an owner (user id 0) to the given user. Returns number of moved reflections
+     */
+    public int claimUnowned(long userId) {
+        UserPartition unowned = partitions.get(Reflection.NO_USER);
+        if (unowned == null || userId == Reflection.NO_USER) {
+            return 0;
         }
 
-        return null;
+        int claimedCount = 0;
+        Reflection reflection;
+        while ((reflection = unowned.removeFirst()) != null) {
+            reflection.setUserId(userId);
+            add(reflection);
+            claimedCount++;
+        }
+
+        partitions.remove(Reflection.NO_USER, unowned);
+        return claimedCount;
     }
 
-    public synchronized void removeById(String id) {
-        for (Reflection reflection : requests) {
-            if (reflection.getId().equals(id)) {
-                requests.remove(reflection);
-                return;
-            }
+    public int size() {
+        int size = 0;
+        for (UserPartition partition : partitions.values()) {
+            size += partition.size();
         }
+        return size;
     }
 
-    public synchronized int size() {
-        return requests.size();
+    public int size(long userId) {
+        UserPartition partition = partitions.get(userId);
+        return partition == null ? 0 : partition.size();
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (Reflection reflection : requests) {
+        for (Reflection reflection : snapshot()) {
             sb.append('\n')
                     .append("id=")
                     .append(reflection.getId())
+                    .append("; user=")
+                    .append(reflection.getUserId())
                     .append("; timestamp=")
                     .append(reflection.getTimestamp())
                     .append(' ')
@@ -64,21 +256,108 @@ public class PollReflectionQueue implements Serializable {
         return sb.toString();
     }
 
-    public synchronized void cleanupOld() {
-        long now = System.currentTimeMillis();
-        requests.removeIf(r -> (now - r.getTimestamp()) > MAX_AGE_MILLIS);
+    /*
+     * Drops reflections older than MAX_AGE_MILLIS. Cheap enough to run every minute:
+     * only reflections whose deadline has passed are touched. Returns the number of expired reflections
+     */
+    public int expire(long nowMillis) {
+        List<Reflection> expired = new ArrayList<>();
+        for (UserPartition partition : partitions.values()) {
+            expired.addAll(partition.expire(nowMillis));
+        }
+
+        ExpiryListener currentExpiryListener = expiryListener;
+        if (currentExpiryListener != null) {
+            expired.forEach(currentExpiryListener::onExpired);
+        }
+
+        return expired.size();
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("requests", new LinkedList<>(snapshot()));
+        out.writeFields();
+    }
+
+    @Serial
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        LinkedList<Reflection> storedRequests = (LinkedList<Reflection>) fields.get("requests", null);
+
+        partitions = new ConcurrentHashMap<>();
+        if (storedRequests != null) {
+            storedRequests.forEach(reflection -> partition(reflection.getUserId()).add(reflection, false));
+        }
+    }
+
+    /*
+     * Every user's reflections are copied consistently under that user's lock, one user at a time.
+     * Changes to other users made meanwhile may or may not be included; the poll queue log covers them
+     */
+    public List<Reflection> snapshot() {
+        List<Reflection> reflections = new ArrayList<>();
+        for (UserPartition partition : partitions.values()) {
+            partition.copyTo(reflections);
+        }
+        return reflections;
     }
 
+    /*
+     * Writes a copy of the queue outside of the lock; the file is replaced atomically.
+     * Layout: SNAPSHOT_MAGIC, SNAPSHOT_VERSION, entry count, then reflections in ReflectionCodec format
+     */
+    public void saveToFile(String filename) throws IOException {
+        List<Reflection> reflections = snapshot();
 
-    public synchronized void saveToFile(String filename) throws IOException {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(filename))) {
-            out.writeObject(this);
+        Path filePath = Paths.get(filename);
+        Path tempPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SNAPSHOT_VERSION);
+            out.writeInt(reflections.size());
+            for (Reflection reflection : reflections) {
+                ReflectionCodec.write(out, reflection);
+            }
+            out.flush();
+            fileOut.getFD().sync();
         }
+
+        Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
+    /*
+     * Reads both the binary snapshot and queues saved with Java serialization by older versions
+     */
     public static PollReflectionQueue loadFromFile(String filename) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(filename))) {
-            return (PollReflectionQueue) in.readObject();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+            in.mark(Integer.BYTES);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                in.reset();
+                return loadSerialized(in);
+            }
+
+            byte version = in.readByte();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported poll queue snapshot version " + version);
+            }
+
+            int count = in.readInt();
+            PollReflectionQueue queue = new PollReflectionQueue();
+            for (int entryIdx = 0; entryIdx < count; entryIdx++) {
+                Reflection reflection = ReflectionCodec.read(in);
+                queue.partition(reflection.getUserId()).add(reflection, false);
+            }
+
+            return queue;
         }
     }
+
+    private static PollReflectionQueue loadSerialized(InputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream objectIn = new ObjectInputStream(in);
+        return (PollReflectionQueue) objectIn.readObject();
+    }
 }
@@ -1,42 +1,123 @@
 package com.kanashi.srb.app.model.reflection;
 
-import com.kanashi.srb.app.utility.DateTextFormatter;
-
 import javax.annotation.Nonnull;
-import java.io.Serial;
-import java.io.Serializable;
+import javax.annotation.Nullable;
+import java.io.*;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.util.UUID;
-
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Objects;
+
+/*
+ * Pending queues hold thousands of reflections, so the state is kept small: the id as two longs,
+ * the target date-time in epoch minutes, the period as a shared enum constant and answers
+ * allocated only once the user starts answering. Dates, ids and period labels are views
+ */
 public class Reflection implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
 
-    private String pleasure = "";
-    private String value = "";
-    private String activity = "";
-    private String targetTimePeriod;
-    private final LocalDateTime dateTime;
-    private final long timestamp;
-    private final String id = UUID.randomUUID().toString().replace("-","");
+    private static final String NO_ANSWER = "";
+    static final long NO_USER = 0L;
+
+    // Serialized form keeps the original fields, so reflections written by older versions still load
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("pleasure", String.class),
+            new ObjectStreamField("value", String.class),
+            new ObjectStreamField("activity", String.class),
+            new ObjectStreamField("targetTimePeriod", String.class),
+            new ObjectStreamField("dateTime", LocalDateTime.class),
+            new ObjectStreamField("timestamp", long.class),
+            new ObjectStreamField("id", String.class)
+    };
+
+    private transient ReflectionId id;
+    private transient int epochMinute;
+    private transient long timestamp;
+    private transient TimePeriod timePeriod;
+    // Only set for periods outside of TimePeriod, timePeriod is null then
+    private transient String customTimePeriod;
+    private transient Answers answers;
+    // Telegram message which asked for this reflection, 0 if unknown
+    private transient int promptMessageId;
+    // Telegram user the reflection belongs to, NO_USER for reflections saved before owners were tracked
+    private transient long userId = NO_USER;
+
+    private static final class Answers {
+        private String activity = NO_ANSWER;
+        private String pleasure = NO_ANSWER;
+        private String value = NO_ANSWER;
+    }
 
     public Reflection(LocalDateTime dateTime) {
-        timestamp = dateTime.atZone(ZoneId.systemDefault()).toInstant().getEpochSecond() * 1000L;
+        this(dateTime.atZone(ZoneId.systemDefault()));
+    }
 
+    public Reflection(LocalDateTime dateTime, @Nonnull String customTimePeriod) {
+        this(dateTime);
+        setTargetTimePeriod(customTimePeriod);
+    }
+
+    /*
+     * Date and period follow the local time of the zone (the user's), the timestamp is the instant
+     */
+    public Reflection(ZonedDateTime zonedDateTime) {
+        id = ReflectionId.random();
+        timestamp = zonedDateTime.toInstant().getEpochSecond() * 1000L;
+
+        LocalDateTime dateTime = zonedDateTime.toLocalDateTime();
         int hour = dateTime.getHour();
 
         if (hour == 0) {
             dateTime = dateTime.minusDays(1);
         }
 
-        this.dateTime = dateTime;
-        this.targetTimePeriod = DateTextFormatter.getTimePeriod(hour);
+        this.epochMinute = toEpochMinute(dateTime);
+        this.timePeriod = TimePeriod.ofHour(hour);
     }
 
-    public Reflection(LocalDateTime dateTime, @Nonnull String customTimePeriod) {
-        this(dateTime);
-        this.targetTimePeriod = customTimePeriod;
+    public Reflection(ZonedDateTime zonedDateTime, @Nonnull String customTimePeriod) {
+        this(zonedDateTime);
+        setTargetTimePeriod(customTimePeriod);
+    }
+
+    /*
+     * Restores a reflection recorded earlier - date, timestamp and period are taken as is
+     */
+    Reflection(LocalDateTime dateTime, long timestamp, @Nonnull String targetTimePeriod) {
+        this(ReflectionId.random(), dateTime, timestamp, targetTimePeriod);
+    }
+
+    Reflection(ReflectionId id, LocalDateTime dateTime, long timestamp, @Nonnull String targetTimePeriod) {
+        this.id = id;
+        this.epochMinute = toEpochMinute(dateTime);
+        this.timestamp = timestamp;
+        setTargetTimePeriod(targetTimePeriod);
+    }
+
+    Reflection(ReflectionId id, int epochMinute, long timestamp, @Nonnull TimePeriod timePeriod) {
+        this.id = id;
+        this.epochMinute = epochMinute;
+        this.timestamp = timestamp;
+        this.timePeriod = timePeriod;
+    }
+
+    private static int toEpochMinute(LocalDateTime dateTime) {
+        return Math.toIntExact(Math.floorDiv(dateTime.toEpochSecond(ZoneOffset.UTC), 60L));
+    }
+
+    private void setTargetTimePeriod(String targetTimePeriod) {
+        this.timePeriod = TimePeriod.fromLabel(targetTimePeriod);
+        this.customTimePeriod = timePeriod == null ? targetTimePeriod : null;
+    }
+
+    private Answers answers() {
+        if (answers == null) {
+            answers = new Answers();
+        }
+        return answers;
     }
 
     public void save() {
@@ -49,23 +130,27 @@ public class Reflection implements Serializable {
     }
 
     public void setActivity(String activity) {
-        this.activity = activity;
+        answers().activity = activity;
     }
 
     public String getId(){
+        return id.toString();
+    }
+
+    ReflectionId getReflectionId() {
         return id;
     }
 
     public String getActivity() {
-        return activity;
+        return answers == null ? NO_ANSWER : answers.activity;
     }
 
     public String getPleasure() {
-        return pleasure;
+        return answers == null ? NO_ANSWER : answers.pleasure;
     }
 
     public String getValue() {
-        return value;
+        return answers == null ? NO_ANSWER : answers.value;
     }
 
     public long getTimestamp() {
@@ -73,18 +158,85 @@ public class Reflection implements Serializable {
     }
 
     public String getTargetTimePeriod() {
-        return targetTimePeriod;
+        return timePeriod != null ? timePeriod.getLabel() : customTimePeriod;
+    }
+
+    /*
+     * Null for custom periods
+     */
+    @Nullable
+    TimePeriod getTimePeriod() {
+        return timePeriod;
     }
 
     public LocalDateTime getDateTime() {
-        return dateTime;
+        return LocalDateTime.ofEpochSecond(epochMinute * 60L, 0, ZoneOffset.UTC);
+    }
+
+    int getEpochMinute() {
+        return epochMinute;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(long userId) {
+        this.userId = userId;
+    }
+
+    public int getPromptMessageId() {
+        return promptMessageId;
+    }
+
+    public void setPromptMessageId(int promptMessageId) {
+        this.promptMessageId = promptMessageId;
     }
 
     public void setPleasure(String pleasure) {
-        this.pleasure = pleasure;
+        answers().pleasure = pleasure;
     }
 
     public void setValue(String value) {
-        this.value = value;
+        answers().value = value;
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("pleasure", getPleasure());
+        fields.put("value", getValue());
+        fields.put("activity", getActivity());
+        fields.put("targetTimePeriod", getTargetTimePeriod());
+        fields.put("dateTime", getDateTime());
+        fields.put("timestamp", timestamp);
+        fields.put("id", getId());
+        out.writeFields();
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+
+        String storedId = (String) fields.get("id", null);
+        id = ReflectionId.parse(storedId);
+        LocalDateTime dateTime = (LocalDateTime) fields.get("dateTime", null);
+        String targetTimePeriod = (String) fields.get("targetTimePeriod", null);
+        if (id == null || dateTime == null || targetTimePeriod == null) {
+            throw new InvalidObjectException("Incomplete reflection " + storedId);
+        }
+
+        epochMinute = toEpochMinute(dateTime);
+        timestamp = fields.get("timestamp", 0L);
+        setTargetTimePeriod(targetTimePeriod);
+
+        String activity = Objects.requireNonNullElse((String) fields.get("activity", null), NO_ANSWER);
+        String pleasure = Objects.requireNonNullElse((String) fields.get("pleasure", null), NO_ANSWER);
+        String value = Objects.requireNonNullElse((String) fields.get("value", null), NO_ANSWER);
+        if (!activity.isEmpty() || !pleasure.isEmpty() || !value.isEmpty()) {
+            setActivity(activity);
+            setPleasure(pleasure);
+            setValue(value);
+        }
     }
 }
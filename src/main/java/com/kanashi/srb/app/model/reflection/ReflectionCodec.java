@@ -0,0 +1,161 @@
+package com.kanashi.srb.app.model.reflection;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/*
+ * Binary encoding of a single reflection, used by the journal, the poll queue log and the poll queue snapshot.
+ *
+ * Layout: format version, id as two longs, local date-time as epoch seconds, creation timestamp,
+ * prompt message id and owner user id (all varints, the user id zigzag-encoded), period as the TimePeriod
+ * ordinal (or PERIOD_CUSTOM followed by the text) and length-prefixed UTF-8 answers
+ */
+final class ReflectionCodec {
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final int PERIOD_CUSTOM = 0xFF;
+    private static final int MAX_TEXT_BYTES = 1024 * 1024;
+
+    private ReflectionCodec() {
+    }
+
+    static byte[] encode(Reflection reflection) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            write(out, reflection);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    static Reflection decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            return read(in);
+        }
+    }
+
+    static void write(DataOutput out, Reflection reflection) throws IOException {
+        ReflectionId id = reflection.getReflectionId();
+
+        out.writeByte(FORMAT_VERSION);
+        out.writeLong(id.high());
+        out.writeLong(id.low());
+        writeVarLong(out, reflection.getEpochMinute() * 60L);
+        writeVarLong(out, reflection.getTimestamp());
+        writeVarLong(out, reflection.getPromptMessageId());
+        writeVarLong(out, zigZag(reflection.getUserId()));
+
+        TimePeriod timePeriod = reflection.getTimePeriod();
+        if (timePeriod != null) {
+            out.writeByte(timePeriod.ordinal());
+        } else {
+            out.writeByte(PERIOD_CUSTOM);
+            writeText(out, reflection.getTargetTimePeriod());
+        }
+
+        writeText(out, reflection.getActivity());
+        writeText(out, reflection.getPleasure());
+        writeText(out, reflection.getValue());
+    }
+
+    static Reflection read(DataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported reflection format version " + version);
+        }
+
+        ReflectionId id = new ReflectionId(in.readLong(), in.readLong());
+        long epochSecond = readVarLong(in);
+        long timestamp = readVarLong(in);
+        int promptMessageId = Math.toIntExact(readVarLong(in));
+        long userId = unZigZag(readVarLong(in));
+
+        Reflection reflection;
+        int periodIdx = in.readUnsignedByte();
+        if (periodIdx == PERIOD_CUSTOM) {
+            reflection = new Reflection(id, LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC), timestamp, readText(in));
+        } else {
+            TimePeriod timePeriod = TimePeriod.fromOrdinal(periodIdx);
+            if (timePeriod == null) {
+                throw new IOException("Unknown reflection period index " + periodIdx);
+            }
+            reflection = new Reflection(id, Math.toIntExact(epochSecond / 60L), timestamp, timePeriod);
+        }
+
+        reflection.setPromptMessageId(promptMessageId);
+        reflection.setUserId(userId);
+        readAnswers(in, reflection);
+        return reflection;
+    }
+
+    /*
+     * Empty answers are common for pending reflections; they don't allocate the answers holder
+     */
+    private static void readAnswers(DataInput in, Reflection reflection) throws IOException {
+        String activity = readText(in);
+        String pleasure = readText(in);
+        String value = readText(in);
+
+        if (!activity.isEmpty() || !pleasure.isEmpty() || !value.isEmpty()) {
+            reflection.setActivity(activity);
+            reflection.setPleasure(pleasure);
+            reflection.setValue(value);
+        }
+    }
+
+    static void writeText(DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readText(DataInput in) throws IOException {
+        long length = readVarLong(in);
+        if (length > MAX_TEXT_BYTES) {
+            throw new IOException("Reflection text is too long: " + length + " bytes");
+        }
+
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Unsigned LEB128: 7 bits per byte, high bit set on all but the last byte
+     */
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        if (value < 0) {
+            throw new IOException("Negative value can't be written as varint: " + value);
+        }
+
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    // Keeps small negative values (e.g. group chat ids) short as varints
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed varint");
+    }
+}
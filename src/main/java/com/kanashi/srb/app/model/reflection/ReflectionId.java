@@ -0,0 +1,39 @@
+package com.kanashi.srb.app.model.reflection;
+
+import javax.annotation.Nullable;
+import java.util.HexFormat;
+import java.util.UUID;
+
+/*
+ * 128-bit reflection id; its text form is 32 lowercase hex digits (a UUID without dashes)
+ */
+record ReflectionId(long high, long low) {
+    private static final int HEX_LENGTH = 32;
+    private static final HexFormat HEX = HexFormat.of();
+
+    static ReflectionId random() {
+        UUID uuid = UUID.randomUUID();
+        return new ReflectionId(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    @Nullable
+    static ReflectionId parse(@Nullable String id) {
+        if (id == null || id.length() != HEX_LENGTH) {
+            return null;
+        }
+
+        for (int charIdx = 0; charIdx < HEX_LENGTH; charIdx++) {
+            if (!HexFormat.isHexDigit(id.charAt(charIdx))) {
+                return null;
+            }
+        }
+
+        return new ReflectionId(HexFormat.fromHexDigitsToLong(id, 0, HEX_LENGTH / 2),
+                HexFormat.fromHexDigitsToLong(id, HEX_LENGTH / 2, HEX_LENGTH));
+    }
+
+    @Override
+    public String toString() {
+        return HEX.toHexDigits(high) + HEX.toHexDigits(low);
+    }
+}
@@ -0,0 +1,399 @@
+package com.kanashi.srb.app.model.reflection;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.LongPredicate;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only write-ahead journal of completed reflections.
+ *
+ * Records live in segment files named after the first sequence number they hold:
+ *   [int payload length][long sequence][int CRC32 of sequence + payload][payload]
+ * Appenders wait for an fsync, but concurrent appenders share one (group commit).
+ * Each sink (e.g. Google Sheets) acknowledges sequences it has applied; segments fully acknowledged
+ * by every sink are deleted, the rest is replayed after a restart
+ */
+public class ReflectionJournal implements Closeable {
+    private static final Logger log = LogManager.getLogger(ReflectionJournal.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACKS_FILE = "acks.properties";
+    private static final long MAX_SEGMENT_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    public record JournalRecord(long seq, Reflection reflection) {
+    }
+
+    private static class SinkOffsets {
+        // Every sequence up to the watermark is acknowledged
+        private long watermark = 0L;
+        private final TreeSet<Long> ackedAboveWatermark = new TreeSet<>();
+    }
+
+    private final Path folder;
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private final Object ackLock = new Object();
+
+    // Guarded by writeLock
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private FileChannel channel;
+    private long channelSize = 0L;
+    private long lastSeq = 0L;
+
+    // Guarded by syncLock
+    private long syncedSeq = 0L;
+
+    // Guarded by ackLock
+    private final Map<String, SinkOffsets> sinks = new HashMap<>();
+
+    private ReflectionJournal(Path folder, Collection<String> sinkNames) {
+        this.folder = folder;
+        for (String sinkName : sinkNames) {
+            sinks.put(sinkName, new SinkOffsets());
+        }
+    }
+
+    public static ReflectionJournal open(String folder, Collection<String> sinkNames) throws IOException {
+        ReflectionJournal journal = new ReflectionJournal(Paths.get(folder), sinkNames);
+        journal.recover();
+        return journal;
+    }
+
+    public long append(Reflection reflection) throws IOException {
+        byte[] payload = ReflectionCodec.encode(reflection);
+        long seq;
+
+        synchronized (writeLock) {
+            if (channel == null) {
+                throw new IOException("Journal is closed");
+            }
+
+            if (channelSize > 0 && channelSize + RECORD_HEADER_BYTES + payload.length > MAX_SEGMENT_BYTES) {
+                roll();
+            }
+
+            seq = ++lastSeq;
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+            buffer.putInt(payload.length)
+                    .putLong(seq)
+                    .putInt(checksum(seq, payload))
+                    .put(payload)
+                    .flip();
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channelSize += RECORD_HEADER_BYTES + payload.length;
+        }
+
+        sync(seq);
+        return seq;
+    }
+
+    public void ack(String sink, Collection<Long> seqs) {
+        if (seqs.isEmpty()) {
+            return;
+        }
+
+        synchronized (ackLock) {
+            SinkOffsets offsets = sinks.get(sink);
+            if (offsets == null) {
+                throw new IllegalArgumentException("Unknown journal sink: " + sink);
+            }
+
+            long initialWatermark = offsets.watermark;
+            for (long seq : seqs) {
+                if (seq > offsets.watermark) {
+                    offsets.ackedAboveWatermark.add(seq);
+                }
+            }
+
+            while (offsets.ackedAboveWatermark.remove(offsets.watermark + 1)) {
+                offsets.watermark++;
+            }
+
+            if (offsets.watermark != initialWatermark) {
+                saveAcks();
+                deleteAcknowledgedSegments();
+            }
+        }
+    }
+
+    public List<JournalRecord> readUnacknowledged(String sink) throws IOException {
+        return readUnacknowledged(sink, Integer.MAX_VALUE, seq -> false);
+    }
+
+    /*
+     * At most maxRecords oldest unacknowledged records, leaving out those matching skipped (e.g. already queued)
+     */
+    public List<JournalRecord> readUnacknowledged(String sink, int maxRecords, LongPredicate skipped) throws IOException {
+        long watermark;
+        Set<Long> acked;
+        synchronized (ackLock) {
+            SinkOffsets offsets = sinks.get(sink);
+            if (offsets == null) {
+                throw new IllegalArgumentException("Unknown journal sink: " + sink);
+            }
+
+            watermark = offsets.watermark;
+            acked = new HashSet<>(offsets.ackedAboveWatermark);
+        }
+
+        List<Path> segmentPaths;
+        long readUpToSeq;
+        synchronized (writeLock) {
+            segmentPaths = new ArrayList<>(segments.values());
+            readUpToSeq = lastSeq;
+        }
+
+        List<JournalRecord> records = new ArrayList<>();
+        for (Path segmentPath : segmentPaths) {
+            readSegment(segmentPath, (seq, payload) -> {
+                if (records.size() < maxRecords && seq > watermark && seq <= readUpToSeq
+                        && !acked.contains(seq) && !skipped.test(seq)) {
+                    records.add(new JournalRecord(seq, ReflectionCodec.decode(payload)));
+                }
+            });
+        }
+
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                // Someone else's fsync already covered this record
+                return;
+            }
+
+            FileChannel syncChannel;
+            long syncUpToSeq;
+            synchronized (writeLock) {
+                syncChannel = channel;
+                syncUpToSeq = lastSeq;
+            }
+
+            if (syncChannel == null) {
+                throw new IOException("Journal is closed");
+            }
+
+            try {
+                syncChannel.force(false);
+            } catch (ClosedChannelException cce) {
+                // Segment was rolled over meanwhile - it is forced before closing
+            }
+
+            syncedSeq = Math.max(syncedSeq, syncUpToSeq);
+        }
+    }
+
+    private void roll() throws IOException {
+        channel.force(false);
+        channel.close();
+        openSegment(lastSeq + 1);
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        Path segmentPath = folder.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channelSize = channel.size();
+        segments.put(firstSeq, segmentPath);
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(folder);
+        loadAcks();
+
+        try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(folder, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segmentFile : segmentFiles) {
+                String fileName = segmentFile.getFileName().toString();
+                try {
+                    long firstSeq = Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(firstSeq, segmentFile);
+                } catch (NumberFormatException nfe) {
+                    log.warn("Skipping unknown journal file {}", segmentFile);
+                }
+            }
+        }
+
+        synchronized (ackLock) {
+            for (SinkOffsets offsets : sinks.values()) {
+                lastSeq = Math.max(lastSeq, offsets.watermark);
+            }
+        }
+
+        synchronized (writeLock) {
+            for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+                long[] segmentLastSeq = {segment.getKey() - 1};
+                long validBytes = readSegment(segment.getValue(), (seq, payload) -> segmentLastSeq[0] = seq);
+                lastSeq = Math.max(lastSeq, segmentLastSeq[0]);
+
+                if (validBytes < Files.size(segment.getValue())) {
+                    log.warn("Journal segment {} has a torn or corrupted tail after {} bytes, truncating", segment.getValue(), validBytes);
+                    try (FileChannel truncateChannel = FileChannel.open(segment.getValue(), StandardOpenOption.WRITE)) {
+                        truncateChannel.truncate(validBytes);
+                    }
+                }
+            }
+
+            if (segments.isEmpty()) {
+                openSegment(lastSeq + 1);
+            } else {
+                Map.Entry<Long, Path> lastSegment = segments.lastEntry();
+                if (Files.size(lastSegment.getValue()) >= MAX_SEGMENT_BYTES) {
+                    openSegment(lastSeq + 1);
+                } else {
+                    openSegment(lastSegment.getKey());
+                }
+            }
+        }
+
+        synchronized (syncLock) {
+            syncedSeq = lastSeq;
+        }
+
+        log.info("Journal {} opened; last sequence <{}>, segments <{}>", folder, lastSeq, segments.size());
+    }
+
+    @FunctionalInterface
+    private interface RecordConsumer {
+        void accept(long seq, byte[] payload) throws IOException;
+    }
+
+    /*
+     * Reads records until the end of the segment or the first torn/corrupted record;
+     * returns the number of bytes holding valid records
+     */
+    private static long readSegment(Path segmentPath, RecordConsumer consumer) throws IOException {
+        long validBytes = 0L;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath)))) {
+            while (true) {
+                int length;
+                long seq;
+                int expectedChecksum;
+                byte[] payload;
+
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_BYTES) {
+                        break;
+                    }
+
+                    seq = in.readLong();
+                    expectedChecksum = in.readInt();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException eofex) {
+                    break;
+                }
+
+                if (checksum(seq, payload) != expectedChecksum) {
+                    break;
+                }
+
+                consumer.accept(seq, payload);
+                validBytes += RECORD_HEADER_BYTES + length;
+            }
+        }
+
+        return validBytes;
+    }
+
+    private static int checksum(long seq, byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(ByteBuffer.allocate(Long.BYTES).putLong(seq).flip());
+        crc32.update(payload);
+        return (int) crc32.getValue();
+    }
+
+    private void deleteAcknowledgedSegments() {
+        long minWatermark = Long.MAX_VALUE;
+        for (SinkOffsets offsets : sinks.values()) {
+            minWatermark = Math.min(minWatermark, offsets.watermark);
+        }
+
+        synchronized (writeLock) {
+            Iterator<Map.Entry<Long, Path>> segmentIterator = segments.entrySet().iterator();
+            while (segmentIterator.hasNext()) {
+                Map.Entry<Long, Path> segment = segmentIterator.next();
+                Long nextFirstSeq = segments.higherKey(segment.getKey());
+
+                // The segment being written to is never deleted
+                if (nextFirstSeq == null || nextFirstSeq - 1 > minWatermark) {
+                    break;
+                }
+
+                try {
+                    Files.deleteIfExists(segment.getValue());
+                    segmentIterator.remove();
+                    log.debug("Journal segment {} fully acknowledged and deleted", segment.getValue());
+                } catch (IOException ioex) {
+                    log.warn("Couldn't delete journal segment {}: {}", segment.getValue(), ioex.getMessage());
+                    break;
+                }
+            }
+        }
+    }
+
+    private void loadAcks() throws IOException {
+        Path acksPath = folder.resolve(ACKS_FILE);
+        if (!Files.exists(acksPath)) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(acksPath)) {
+            properties.load(in);
+        }
+
+        synchronized (ackLock) {
+            for (Map.Entry<String, SinkOffsets> sink : sinks.entrySet()) {
+                try {
+                    sink.getValue().watermark = Long.parseLong(properties.getProperty(sink.getKey(), "0"));
+                } catch (NumberFormatException nfe) {
+                    log.warn("Malformed journal acknowledgement for sink {}", sink.getKey());
+                }
+            }
+        }
+    }
+
+    private void saveAcks() {
+        Properties properties = new Properties();
+        sinks.forEach((sinkName, offsets) -> properties.setProperty(sinkName, String.valueOf(offsets.watermark)));
+
+        Path acksPath = folder.resolve(ACKS_FILE);
+        Path tempPath = folder.resolve(ACKS_FILE + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tempPath)) {
+                properties.store(out, "Journal acknowledgement offsets");
+            }
+            Files.move(tempPath, acksPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioex) {
+            log.warn("Couldn't save journal acknowledgements: {}", ioex.getMessage());
+        }
+    }
+}
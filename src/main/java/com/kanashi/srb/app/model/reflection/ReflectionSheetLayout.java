@@ -0,0 +1,75 @@
+package com.kanashi.srb.app.model.reflection;
+
+import com.kanashi.srb.app.utility.DateTextFormatter;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/*
+ * Fixed layout of a reflection day block in the spreadsheet:
+ *
+ *   | date | weekday | за день | 08:00-09:00 | ... | 23:00-00:00 |   <- header row
+ *   |      | занятие      | ...                                   |   <- activity row
+ *   |      | удовольствие | ...                                   |   <- pleasure row
+ *   |      | ценность     | ...                                   |   <- value row
+ */
+public class ReflectionSheetLayout {
+    public static final int DATE_COLUMN_IDX = 0;
+    public static final int WEEKDAY_COLUMN_IDX = 1;
+    public static final int FIRST_PERIOD_COLUMN_IDX = 2;
+
+    public static final int ACTIVITY_ROW_OFFSET = 1;
+    public static final int PLEASURE_ROW_OFFSET = 2;
+    public static final int VALUE_ROW_OFFSET = 3;
+    public static final int DAY_BLOCK_HEIGHT = 4;
+
+    private final static List<Object> PERIOD_ROW_MARKUP = new ArrayList<>() {{
+        add(TimePeriod.DAY_OVERALL.getLabel());
+        for (int hour = ReflectionWriter.getLoggingStartHour(); hour <= ReflectionWriter.getLoggingEndHour(); hour++) {
+            add(DateTextFormatter.getTimePeriod(hour % 24));
+        }
+    }};
+
+    private final static Map<String, Integer> PERIOD_COLUMNS = new HashMap<>() {{
+        for (int periodIdx = 0; periodIdx < PERIOD_ROW_MARKUP.size(); ++periodIdx) {
+            put(PERIOD_ROW_MARKUP.get(periodIdx).toString(), FIRST_PERIOD_COLUMN_IDX + periodIdx);
+        }
+    }};
+
+    private final static List<Object> ACTIVITY_ROW_MARKUP = Arrays.asList("", "занятие");
+    private final static List<Object> PLEASURE_ROW_MARKUP = Arrays.asList("", "удовольствие");
+    private final static List<Object> VALUE_ROW_MARKUP = Arrays.asList("", "ценность");
+
+    public static int getPeriodColumnIdx(String timePeriod) {
+        return PERIOD_COLUMNS.getOrDefault(timePeriod, -1);
+    }
+
+    public static List<Object> buildHeaderRow(LocalDateTime dateTime) {
+        List<Object> headerRow = new ArrayList<>(FIRST_PERIOD_COLUMN_IDX + PERIOD_ROW_MARKUP.size());
+        headerRow.add(DateTextFormatter.getDate(dateTime));
+        headerRow.add(DateTextFormatter.getWeekDay(dateTime));
+        headerRow.addAll(PERIOD_ROW_MARKUP);
+        return headerRow;
+    }
+
+    public static List<List<Object>> buildDayBlock(LocalDateTime dateTime) {
+        return List.of(buildHeaderRow(dateTime), ACTIVITY_ROW_MARKUP, PLEASURE_ROW_MARKUP, VALUE_ROW_MARKUP);
+    }
+
+    /*
+     * True if period headers of a fetched header row are exactly where the layout puts them
+     */
+    public static boolean matchesHeader(List<String> headerRow) {
+        if (headerRow.size() < FIRST_PERIOD_COLUMN_IDX + PERIOD_ROW_MARKUP.size()) {
+            return false;
+        }
+
+        for (int periodIdx = 0; periodIdx < PERIOD_ROW_MARKUP.size(); ++periodIdx) {
+            if (!headerRow.get(FIRST_PERIOD_COLUMN_IDX + periodIdx).equals(PERIOD_ROW_MARKUP.get(periodIdx))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,346 @@
+package com.kanashi.srb.app.model.reflection;
+
+import com.kanashi.srb.app.utility.DateTextFormatter;
+import com.kanashi.srb.google.api.CellWrite;
+import com.kanashi.srb.google.api.SheetService;
+import com.kanashi.srb.google.api.SheetTarget;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+ * Collects reflections for a short window (or until the batch is full) and writes them to Google Sheets
+ * grouped by spreadsheet and day block. Repeated writes to the same cell are merged - the last one wins -
+ * and every spreadsheet gets a single batchUpdate per flush.
+ * At most MAX_PENDING reflections are held in memory: past that, journaled ones are left in the journal and
+ * re-read in chunks once a flush succeeds, others go to the dead letter handler (failure files on disk)
+ */
+class ReflectionWritePipeline {
+    private static final Logger log = LogManager.getLogger(ReflectionWritePipeline.class);
+
+    private static final long FLUSH_WINDOW_MILLIS = 2000;
+    private static final int FLUSH_BATCH_SIZE = 50;
+    private static final long NOT_JOURNALED = -1L;
+    private static final int MAX_PENDING = 1000;
+    private static final int BACKPRESSURE_DEPTH = MAX_PENDING / 2;
+
+    /*
+     * Reflection together with its journal sequence (NOT_JOURNALED if the journal is unavailable)
+     */
+    private record PendingWrite(long journalSeq, Reflection reflection) {
+    }
+
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+    @Nullable
+    private final ReflectionJournal journal;
+    private final String journalSink;
+    private final Consumer<Reflection> deadLetterHandler;
+
+    private final Object lock = new Object();
+    private List<PendingWrite> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed = false;
+    private final Set<Long> inFlightSeqs = ConcurrentHashMap.newKeySet();
+    // Batch taken by the running flush, spilled as well if shutdown runs out of time
+    private volatile List<PendingWrite> inFlightBatch = List.of();
+
+    private final AtomicLong spilledCount = new AtomicLong();
+    private volatile boolean spilling = false;
+    // Journaled reflections were dropped from memory and wait to be re-read
+    private volatile boolean spilledToJournal = false;
+
+    private volatile long lastFlushLatencyMillis = 0L;
+    private volatile int lastFlushSize = 0;
+
+    /*
+     * Written reflections are acknowledged in the journal. Transient failures stay unacknowledged and are
+     * re-submitted from the journal later; reflections which can't be placed in the sheet go to deadLetterHandler
+     */
+    ReflectionWritePipeline(@Nullable ReflectionJournal journal, String journalSink, Consumer<Reflection> deadLetterHandler) {
+        this.journal = journal;
+        this.journalSink = journalSink;
+        this.deadLetterHandler = deadLetterHandler;
+    }
+
+    void submit(Reflection reflection, long journalSeq) {
+        if (journalSeq != NOT_JOURNALED && !inFlightSeqs.add(journalSeq)) {
+            return;
+        }
+
+        PendingWrite pendingWrite = new PendingWrite(journalSeq, reflection);
+        synchronized (lock) {
+            if (!closed && pending.size() < MAX_PENDING) {
+                pending.add(pendingWrite);
+
+                if (pending.size() >= FLUSH_BATCH_SIZE) {
+                    cancelScheduledFlush();
+                    flushExecutor.execute(this::flush);
+                } else if (scheduledFlush == null) {
+                    scheduledFlush = flushExecutor.schedule(this::flush, FLUSH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+
+        if (!spilling) {
+            spilling = true;
+            log.warn("Sheets write queue is full ({}) or closed, reflections wait on disk", MAX_PENDING);
+        }
+        spill(pendingWrite);
+    }
+
+    private void spill(PendingWrite pendingWrite) {
+        spilledCount.incrementAndGet();
+
+        if (pendingWrite.journalSeq() == NOT_JOURNALED) {
+            deadLetterHandler.accept(pendingWrite.reflection());
+        } else {
+            // Stays unacknowledged in the journal
+            inFlightSeqs.remove(pendingWrite.journalSeq());
+            spilledToJournal = true;
+        }
+    }
+
+    /*
+     * Re-reads unacknowledged reflections from the journal, no more than the queue has room for.
+     * Those already queued are skipped
+     */
+    int resubmitUnacknowledged() throws IOException {
+        if (journal == null) {
+            return 0;
+        }
+
+        int freeCapacity = MAX_PENDING - getQueueDepth();
+        if (freeCapacity <= 0) {
+            return 0;
+        }
+
+        spilledToJournal = false;
+        List<ReflectionJournal.JournalRecord> records = journal.readUnacknowledged(journalSink, freeCapacity, inFlightSeqs::contains);
+        records.forEach(record -> submit(record.reflection(), record.seq()));
+
+        if (records.size() == freeCapacity) {
+            // There may be more, read the next chunk after the next successful flush
+            spilledToJournal = true;
+        }
+
+        return records.size();
+    }
+
+    void submit(Reflection reflection) {
+        submit(reflection, NOT_JOURNALED);
+    }
+
+    int getQueueDepth() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    long getLastFlushLatencyMillis() {
+        return lastFlushLatencyMillis;
+    }
+
+    int getLastFlushSize() {
+        return lastFlushSize;
+    }
+
+    long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /*
+     * True while the queue is more than half full or overflows to disk
+     */
+    boolean isBackpressured() {
+        return spilling || getQueueDepth() >= BACKPRESSURE_DEPTH;
+    }
+
+    /*
+     * Flushes whatever is pending within the timeout; what's left after it is spilled to disk.
+     * Reflections submitted after this are spilled right away
+     */
+    void shutdown(long timeout, TimeUnit unit) {
+        synchronized (lock) {
+            closed = true;
+            cancelScheduledFlush();
+        }
+
+        flushExecutor.execute(this::flush);
+        flushExecutor.shutdown();
+
+        boolean drained = false;
+        try {
+            drained = flushExecutor.awaitTermination(timeout, unit);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (drained) {
+            return;
+        }
+
+        // A write which still completes meanwhile is repeated later, which is harmless: same cells, same values
+        List<PendingWrite> leftover = new ArrayList<>(inFlightBatch);
+        synchronized (lock) {
+            leftover.addAll(pending);
+            pending = new ArrayList<>();
+        }
+
+        leftover.forEach(this::spill);
+        log.warn("Sheets write pipeline didn't finish in time, {} reflection(s) spilled to disk", leftover.size());
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private void flush() {
+        List<PendingWrite> batch;
+        synchronized (lock) {
+            scheduledFlush = null;
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        inFlightBatch = batch;
+
+        long startTime = System.currentTimeMillis();
+
+        boolean allWritten = true;
+        Map<SheetTarget, List<PendingWrite>> byTarget = new LinkedHashMap<>();
+        for (PendingWrite pendingWrite : batch) {
+            byTarget.computeIfAbsent(ReflectionWriter.getSheetTarget(pendingWrite.reflection()), t -> new ArrayList<>()).add(pendingWrite);
+        }
+
+        for (Map.Entry<SheetTarget, List<PendingWrite>> targetBatch : byTarget.entrySet()) {
+            List<PendingWrite> targetWrites = targetBatch.getValue();
+            List<Reflection> reflections = new ArrayList<>(targetWrites.size());
+            targetWrites.forEach(pendingWrite -> reflections.add(pendingWrite.reflection()));
+
+            try {
+                Set<Reflection> unplaced = Collections.newSetFromMap(new IdentityHashMap<>());
+                unplaced.addAll(writeBatch(targetBatch.getKey(), reflections));
+
+                List<Long> appliedSeqs = new ArrayList<>(targetWrites.size());
+                for (PendingWrite pendingWrite : targetWrites) {
+                    if (unplaced.contains(pendingWrite.reflection())) {
+                        deadLetterHandler.accept(pendingWrite.reflection());
+                    }
+                    if (pendingWrite.journalSeq() != NOT_JOURNALED) {
+                        appliedSeqs.add(pendingWrite.journalSeq());
+                    }
+                }
+
+                if (journal != null) {
+                    journal.ack(journalSink, appliedSeqs);
+                }
+            } catch (NullPointerException | IOException ex) {
+                log.error("Google API Sheets batch fail: {}", ex.getMessage());
+                allWritten = false;
+                for (PendingWrite pendingWrite : targetWrites) {
+                    if (pendingWrite.journalSeq() == NOT_JOURNALED) {
+                        deadLetterHandler.accept(pendingWrite.reflection());
+                    }
+                }
+            } finally {
+                targetWrites.forEach(pendingWrite -> inFlightSeqs.remove(pendingWrite.journalSeq()));
+            }
+        }
+
+        inFlightBatch = List.of();
+        lastFlushSize = batch.size();
+        lastFlushLatencyMillis = System.currentTimeMillis() - startTime;
+        log.debug("Flushed {} reflections to {} spreadsheet(s) in {} ms; queue depth <{}>",
+                lastFlushSize, byTarget.size(), lastFlushLatencyMillis, getQueueDepth());
+
+        // Sheets is reachable again: pick up what was left on disk. After a failure the periodic replay does it
+        if (allWritten && getQueueDepth() < BACKPRESSURE_DEPTH) {
+            if (spilling) {
+                spilling = false;
+                log.info("Sheets write queue drained, {} reflection(s) spilled so far", spilledCount.get());
+            }
+            if (spilledToJournal) {
+                try {
+                    resubmitUnacknowledged();
+                } catch (IOException ioex) {
+                    log.error("Couldn't read reflection journal: {}", ioex.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+     * Writes reflections of one spreadsheet in a single batchUpdate.
+     * Returns reflections which couldn't be placed in the sheet
+     */
+    static List<Reflection> writeBatch(SheetTarget target, List<Reflection> reflections) throws NullPointerException, IOException {
+        Map<String, List<Reflection>> byDay = new LinkedHashMap<>();
+        for (Reflection reflection : reflections) {
+            byDay.computeIfAbsent(DateTextFormatter.getDate(reflection.getDateTime()), d -> new ArrayList<>()).add(reflection);
+        }
+
+        List<Reflection> unplaced = new ArrayList<>();
+        Map<Long, CellWrite> cellWrites = new LinkedHashMap<>();
+
+        for (List<Reflection> dayReflections : byDay.values()) {
+            DayBlockLocator.DayBlock dayBlock = locateOrAppend(target, dayReflections.getFirst());
+
+            if (dayBlock == null) {
+                log.error("Couldn't find or append day block for {}", ReflectionWriter.print(dayReflections.getFirst()));
+                unplaced.addAll(dayReflections);
+                continue;
+            }
+
+            for (Reflection reflection : dayReflections) {
+                int columnIdx = dayBlock.getPeriodColumnIdx(reflection.getTargetTimePeriod());
+
+                if (columnIdx < 0) {
+                    log.error("Couldn't find necessary time period for {}", ReflectionWriter.print(reflection));
+                    unplaced.add(reflection);
+                    continue;
+                }
+
+                putCell(cellWrites, new CellWrite(dayBlock.rowIdx() + ReflectionSheetLayout.ACTIVITY_ROW_OFFSET, columnIdx, reflection.getActivity()));
+                putCell(cellWrites, new CellWrite(dayBlock.rowIdx() + ReflectionSheetLayout.PLEASURE_ROW_OFFSET, columnIdx, reflection.getPleasure()));
+                putCell(cellWrites, new CellWrite(dayBlock.rowIdx() + ReflectionSheetLayout.VALUE_ROW_OFFSET, columnIdx, reflection.getValue()));
+            }
+        }
+
+        SheetService.batchUpdateCells(target, new ArrayList<>(cellWrites.values()));
+        return unplaced;
+    }
+
+    private static DayBlockLocator.DayBlock locateOrAppend(SheetTarget target, Reflection reflection) throws NullPointerException, IOException {
+        DayBlockLocator.DayBlock dayBlock = DayBlockLocator.locate(target, reflection.getDateTime());
+
+        if (dayBlock == null && ReflectionWriter.appendNewReflectionDay(target, reflection.getDateTime()) >= 0) {
+            dayBlock = DayBlockLocator.locate(target, reflection.getDateTime());
+        }
+
+        return dayBlock;
+    }
+
+    private static void putCell(Map<Long, CellWrite> cellWrites, CellWrite cellWrite) {
+        long cellKey = ((long) cellWrite.rowIdx() << 32) | cellWrite.colIdx();
+        // Re-insert so the latest value keeps its place at the end of the batch
+        cellWrites.remove(cellKey);
+        cellWrites.put(cellKey, cellWrite);
+    }
+}
@@ -1,22 +1,38 @@
 package com.kanashi.srb.app.model.reflection;
 
+import com.kanashi.srb.app.model.user.UserProfile;
 import com.kanashi.srb.app.utility.DateTextFormatter;
 import com.kanashi.srb.google.api.SheetService;
+import com.kanashi.srb.google.api.SheetTarget;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.annotation.Nullable;
+
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ReflectionWriter {
     private static final Logger log = LogManager.getLogger(ReflectionWriter.class);
-    private static final Executor executor = Executors.newSingleThreadExecutor();
+    private static final int FILE_QUEUE_CAPACITY = 1000;
+    // Bounded: when it's full (or shut down) the caller writes the file itself, slowing down instead of piling up
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(FILE_QUEUE_CAPACITY), (task, rejectingExecutor) -> task.run());
+    private static final String JOURNAL_FOLDER = "data/journal/";
+    private static final String JOURNAL_SINK_SHEETS = "sheets";
+    private static final ReflectionJournal journal = openJournal();
+    private static final ReflectionWritePipeline sheetsPipeline =
+            new ReflectionWritePipeline(journal, JOURNAL_SINK_SHEETS, ReflectionWriter::writeFailure);
 
     private enum WriteDestination {
         GOOGLE_SHEETS,
@@ -24,29 +40,17 @@ public class ReflectionWriter {
         BINARY_FILE
     }
 
-    private static Executor getExecutor() {
+    private static ThreadPoolExecutor getExecutor() {
         return executor;
     }
 
     private static final int LOGGING_START_HOUR = 9;
     private static final int LOGGING_END_HOUR = 24;
-    private static final String TIME_PERIOD_DAY_OVERALL = "за день";
-
 
-    private static final String SHEETS_DATE_COLUMN_RANGE = "A:A";
 
     private static final String FAILURES_FOLDER = "data/failures/";
-
-    private final static List<Object> SHEETS_PERIOD_ROW_MARKUP = new ArrayList<>() {{
-        add(TIME_PERIOD_DAY_OVERALL);
-        for (int hour = LOGGING_START_HOUR; hour <= LOGGING_END_HOUR; hour++) {
-            add(DateTextFormatter.getTimePeriod(hour % 24));
-        }
-    }};
-
-    private final static List<Object> SHEETS_ACTIVITY_ROW_MARKUP = Arrays.asList("", "занятие");
-    private final static List<Object> SHEETS_PLEASURE_ROW_MARKUP = Arrays.asList("", "удовольствие");
-    private final static List<Object> SHEETS_VALUE_ROW_MARKUP = Arrays.asList("", "ценность");
+    // User id -> sheet of the user's reflections
+    private static final Map<Long, SheetTarget> sheetTargets = new ConcurrentHashMap<>();
 
     private final Reflection reflection;
     private final WriteDestination writeDestination;
@@ -67,36 +71,169 @@ public class ReflectionWriter {
         }
     }
 
-    public static int appendNewReflectionDay(LocalDateTime dateTime) {
+    public static int appendNewReflectionDay(SheetTarget target, LocalDateTime dateTime) {
         try {
-            List<Object> mainRowMarkup = new ArrayList<>(Arrays.asList(
-                    DateTextFormatter.getDate(dateTime),
-                    DateTextFormatter.getWeekDay(dateTime)
-            ));
-            mainRowMarkup.addAll(SHEETS_PERIOD_ROW_MARKUP);
-
-            int newRowIdx = SheetService.appendRow(mainRowMarkup);
-            SheetService.appendRow(SHEETS_ACTIVITY_ROW_MARKUP);
-            SheetService.appendRow(SHEETS_PLEASURE_ROW_MARKUP);
-            SheetService.appendRow(SHEETS_VALUE_ROW_MARKUP);
-
-            return newRowIdx;
+            return DayBlockProvisioner.provisionDay(target, dateTime.toLocalDate());
         } catch (IOException ioex) {
             log.error("Couldn't append new sheets row: {}", ioex.getMessage());
             return -1;
         }
     }
 
+    /*
+     * Makes sure every user's sheet has blocks from the user's current day up to daysAhead days later,
+     * one request per sheet (users have sheets of their own, see UserDirectory). Returns the number of appended blocks
+     */
+    public static int provisionDayBlocks(Collection<UserProfile> profiles, int daysAhead) {
+        Instant now = Instant.now();
+        Map<SheetTarget, SortedSet<LocalDate>> datesByTarget = new HashMap<>();
+
+        for (UserProfile profile : profiles) {
+            LocalDate today = LocalDate.ofInstant(now, profile.zoneId());
+            SortedSet<LocalDate> dates = datesByTarget.computeIfAbsent(getSheetTarget(profile), t -> new TreeSet<>());
+            for (int dayOffset = 0; dayOffset <= daysAhead; ++dayOffset) {
+                dates.add(today.plusDays(dayOffset));
+            }
+        }
+
+        int appendedCount = 0;
+        for (Map.Entry<SheetTarget, SortedSet<LocalDate>> entry : datesByTarget.entrySet()) {
+            try {
+                appendedCount += DayBlockProvisioner.provision(entry.getKey(), entry.getValue(), true);
+            } catch (IOException | NullPointerException ex) {
+                log.error("Couldn't provision day blocks of sheet {}: {}", entry.getKey().sheetName(), ex.getMessage());
+            }
+        }
+
+        return appendedCount;
+    }
+
+    @Nullable
+    private static ReflectionJournal openJournal() {
+        try {
+            return ReflectionJournal.open(JOURNAL_FOLDER, List.of(JOURNAL_SINK_SHEETS));
+        } catch (IOException ioex) {
+            log.error("Couldn't open reflection journal {}, writes won't be journaled: {}", JOURNAL_FOLDER, ioex.getMessage());
+            return null;
+        }
+    }
+
     public void write() {
+        if (writeDestination == WriteDestination.GOOGLE_SHEETS) {
+            writeGoogleSheets();
+            return;
+        }
+
         Runnable writeTask = switch (writeDestination) {
-            case GOOGLE_SHEETS -> this::writeGoogleSheets;
             case BINARY_FILE -> this::writeObjectFile;
             case TEXT_FILE -> this::writeTextFile;
+            default -> throw new IllegalStateException("Unexpected write destination: " + writeDestination);
         };
 
         getExecutor().execute(writeTask);
     }
 
+    static String getFailuresFolder() {
+        return FAILURES_FOLDER;
+    }
+
+    /*
+     * Sends every user's reflections to the user's sheet. Call before any writes
+     */
+    public static void registerSheetTargets(Collection<UserProfile> profiles) {
+        for (UserProfile profile : profiles) {
+            sheetTargets.put(profile.userId(), getSheetTarget(profile));
+        }
+    }
+
+    public static SheetTarget getSheetTarget(UserProfile profile) {
+        return profile.sheetName() == null ? SheetTarget.getDefault() : new SheetTarget(SheetService.getSpreadsheetId(), profile.sheetName());
+    }
+
+    public static SheetTarget getSheetTarget(Reflection reflection) {
+        return getSheetTarget(reflection.getUserId());
+    }
+
+    /*
+     * Reflections saved before they had an owner go to the default sheet
+     */
+    public static SheetTarget getSheetTarget(long userId) {
+        SheetTarget target = sheetTargets.get(userId);
+        return target != null ? target : SheetTarget.getDefault();
+    }
+
+    public static int getSheetsQueueDepth() {
+        return sheetsPipeline.getQueueDepth();
+    }
+
+    public static long getSheetsFlushLatencyMillis() {
+        return sheetsPipeline.getLastFlushLatencyMillis();
+    }
+
+    /*
+     * Re-submits journaled reflections which Google Sheets hasn't acknowledged yet - after a restart
+     * or after a failed batch
+     */
+    public static int resubmitUnacknowledged() {
+        if (journal == null) {
+            return 0;
+        }
+
+        try {
+            int resubmittedCount = sheetsPipeline.resubmitUnacknowledged();
+
+            if (resubmittedCount > 0) {
+                log.info("Re-submitted {} unacknowledged reflection(s) from the journal", resubmittedCount);
+            }
+
+            return resubmittedCount;
+        } catch (IOException ioex) {
+            log.error("Couldn't read reflection journal: {}", ioex.getMessage());
+            return 0;
+        }
+    }
+
+    public static int getFileQueueDepth() {
+        return getExecutor().getQueue().size();
+    }
+
+    public static long getSheetsSpilledCount() {
+        return sheetsPipeline.getSpilledCount();
+    }
+
+    public static boolean isSheetsBackpressured() {
+        return sheetsPipeline.isBackpressured();
+    }
+
+    /*
+     * Drains the Sheets queue and pending file writes within the timeout; Sheets writes left after it are
+     * spilled to disk, file writes left are done on the calling thread
+     */
+    public static void shutdown(long timeout, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        sheetsPipeline.shutdown(timeout, unit);
+
+        ThreadPoolExecutor fileExecutor = getExecutor();
+        fileExecutor.shutdown();
+        try {
+            if (!fileExecutor.awaitTermination(Math.max(deadlineNanos - System.nanoTime(), 0L), TimeUnit.NANOSECONDS)) {
+                List<Runnable> leftover = fileExecutor.shutdownNow();
+                log.warn("File writes didn't finish in time, writing the remaining {} on the shutdown thread", leftover.size());
+                leftover.forEach(Runnable::run);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ioex) {
+                log.error("Couldn't close reflection journal: {}", ioex.getMessage());
+            }
+        }
+    }
+
     public static class Builder {
         private final Reflection reflection;
         private WriteDestination writeDestination = WriteDestination.GOOGLE_SHEETS;
@@ -132,41 +269,32 @@ public class ReflectionWriter {
     }
 
     private void writeGoogleSheets() {
-        try {
-            int entryRowIndex = SheetService.getRowIdxForEntry(SHEETS_DATE_COLUMN_RANGE, DateTextFormatter.getDate(reflection.getDateTime()));
-
-            if (entryRowIndex < 0) {
-                entryRowIndex = appendNewReflectionDay(reflection.getDateTime());
-            }
-
-            if (entryRowIndex < 0) {
-                throw new NullPointerException("Couldn't append new row");
-            }
-
-            int periodEntryColumnIdx = SheetService.getColumnIdxForRowEntry(entryRowIndex, reflection.getTargetTimePeriod());
+        if (journal == null) {
+            sheetsPipeline.submit(reflection);
+            return;
+        }
 
-            if (periodEntryColumnIdx < 0) {
-                throw new NullPointerException("Couldn't find necessary time period");
-            }
+        try {
+            sheetsPipeline.submit(reflection, journal.append(reflection));
+        } catch (IOException ioex) {
+            log.error("Couldn't append reflection to the journal: {}", ioex.getMessage());
+            sheetsPipeline.submit(reflection);
+        }
+    }
 
-            SheetService.updateCellValue(entryRowIndex + 1, periodEntryColumnIdx, reflection.getActivity());
-            SheetService.updateCellValue(entryRowIndex + 2, periodEntryColumnIdx, reflection.getPleasure());
-            SheetService.updateCellValue(entryRowIndex + 3, periodEntryColumnIdx, reflection.getValue());
-        } catch (NullPointerException | IOException ex) {
-            log.error("Google API Sheets fail: {}", ex.getMessage());
-            ReflectionWriter failureWriter =
-                    new Builder(reflection)
-                            .text()
-                            .toPath(FAILURES_FOLDER)
-                            .build();
+    private static void writeFailure(Reflection reflection) {
+        ReflectionWriter failureWriter =
+                new Builder(reflection)
+                        .text()
+                        .toPath(FAILURES_FOLDER)
+                        .build();
 
-            failureWriter.write();
-        }
+        failureWriter.write();
     }
 
     private void writeTextFile() {
         try {
-            String fileName = hashCode() + ".txt";
+            String fileName = reflection.getId() + ".txt";
             File reflectionFile = new File(filePath);
             if (reflectionFile.mkdirs()) {
                 log.info("Directory {} successfully created", reflectionFile.getPath());
@@ -177,6 +305,7 @@ public class ReflectionWriter {
             fileWriter.write("targetDate=" + DateTextFormatter.getDate(reflectionTime) + "\n");
             fileWriter.write("targetTimePeriod=" + reflection.getTargetTimePeriod() + "\n");
             fileWriter.write("timestamp=" + reflection.getTimestamp() + "\n");
+            fileWriter.write("userId=" + reflection.getUserId() + "\n");
             fileWriter.write("weekDay=" + DateTextFormatter.getWeekDay(reflectionTime) + "\n");
             fileWriter.write("activity=" + reflection.getActivity() + "\n");
             fileWriter.write("pleasure=" + reflection.getPleasure() + "\n");
@@ -200,7 +329,7 @@ public class ReflectionWriter {
     }
 
     public static String getOverallTimePeriod() {
-        return TIME_PERIOD_DAY_OVERALL;
+        return TimePeriod.DAY_OVERALL.getLabel();
     }
 
     public static String buildMessage(Reflection reflection, String message) {
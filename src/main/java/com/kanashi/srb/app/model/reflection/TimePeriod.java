@@ -0,0 +1,54 @@
+package com.kanashi.srb.app.model.reflection;
+
+import com.kanashi.srb.app.utility.DateTextFormatter;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Periods a reflection can be asked for: the hour ending at H00..H23 and the whole day.
+ * Ordinals are stored by ReflectionCodec, so constants may only be appended
+ */
+public enum TimePeriod {
+    H00(0), H01(1), H02(2), H03(3), H04(4), H05(5), H06(6), H07(7),
+    H08(8), H09(9), H10(10), H11(11), H12(12), H13(13), H14(14), H15(15),
+    H16(16), H17(17), H18(18), H19(19), H20(20), H21(21), H22(22), H23(23),
+    DAY_OVERALL(-1);
+
+    private static final String DAY_OVERALL_LABEL = "за день";
+
+    private static final TimePeriod[] VALUES = values();
+    private static final Map<String, TimePeriod> BY_LABEL = new HashMap<>() {{
+        for (TimePeriod timePeriod : VALUES) {
+            put(timePeriod.label, timePeriod);
+        }
+    }};
+
+    private final String label;
+
+    TimePeriod(int endHour) {
+        this.label = endHour < 0 ? DAY_OVERALL_LABEL : DateTextFormatter.getTimePeriod(endHour);
+    }
+
+    /*
+     * Text shown to the user and used as the column header, e.g. "08:00-09:00"
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    public static TimePeriod ofHour(int endHour) {
+        return VALUES[endHour];
+    }
+
+    @Nullable
+    public static TimePeriod fromLabel(String label) {
+        return BY_LABEL.get(label);
+    }
+
+    @Nullable
+    static TimePeriod fromOrdinal(int ordinal) {
+        return ordinal < VALUES.length ? VALUES[ordinal] : null;
+    }
+}
@@ -0,0 +1,61 @@
+package com.kanashi.srb.app.model.user;
+
+import com.kanashi.srb.app.flow.BotFlow;
+
+import javax.annotation.Nullable;
+
+/*
+ * State of a conversation with one chat: the active flow and when the chat was last seen.
+ * Pending prompts of the chat stay in its PollReflectionQueue partition
+ */
+public class ChatSession {
+    private final long chatId;
+    private BotFlow currentFlow;
+    private volatile long lastActivityMillis;
+
+    ChatSession(long chatId, long nowMillis) {
+        this.chatId = chatId;
+        this.lastActivityMillis = nowMillis;
+    }
+
+    public long getChatId() {
+        return chatId;
+    }
+
+    /*
+     * Ends the previous flow, if any, and makes the new one current
+     */
+    public synchronized void startFlow(BotFlow flow) {
+        if (currentFlow != null) {
+            currentFlow.end();
+        }
+        currentFlow = flow;
+        currentFlow.start();
+    }
+
+    public synchronized void endFlow() {
+        if (currentFlow != null) {
+            currentFlow.end();
+            currentFlow = null;
+        }
+    }
+
+    /*
+     * Drops the current flow once it's finished; returns the flow only if it's still running
+     */
+    @Nullable
+    public synchronized BotFlow getActiveFlow() {
+        if (currentFlow != null && currentFlow.isFinished()) {
+            currentFlow = null;
+        }
+        return currentFlow;
+    }
+
+    public long getLastActivityMillis() {
+        return lastActivityMillis;
+    }
+
+    void touch(long nowMillis) {
+        lastActivityMillis = nowMillis;
+    }
+}
@@ -0,0 +1,87 @@
+package com.kanashi.srb.app.model.user;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Sessions keyed by chat id. Sessions idle for longer than the TTL are evicted together with their flows;
+ * when the registry is full, the least recently active session makes room for a new one
+ */
+public class SessionRegistry {
+    private static final Logger log = LogManager.getLogger(SessionRegistry.class);
+
+    private final ConcurrentHashMap<Long, ChatSession> sessions = new ConcurrentHashMap<>();
+    private final long idleTtlMillis;
+    private final int maxSessions;
+
+    public SessionRegistry(long idleTtlMillis, int maxSessions) {
+        this.idleTtlMillis = idleTtlMillis;
+        this.maxSessions = maxSessions;
+    }
+
+    public ChatSession getOrCreate(long chatId) {
+        long now = System.currentTimeMillis();
+
+        ChatSession session = sessions.get(chatId);
+        if (session == null) {
+            if (sessions.size() >= maxSessions) {
+                evictLeastRecentlyActive();
+            }
+            session = sessions.computeIfAbsent(chatId, id -> new ChatSession(id, now));
+        }
+
+        session.touch(now);
+        return session;
+    }
+
+    @Nullable
+    public ChatSession get(long chatId) {
+        return sessions.get(chatId);
+    }
+
+    /*
+     * Returns number of evicted sessions
+     */
+    public int evictIdle(long nowMillis) {
+        int evictedCount = 0;
+
+        for (Map.Entry<Long, ChatSession> sessionEntry : sessions.entrySet()) {
+            ChatSession session = sessionEntry.getValue();
+            if (nowMillis - session.getLastActivityMillis() > idleTtlMillis && evict(session)) {
+                evictedCount++;
+            }
+        }
+
+        return evictedCount;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private void evictLeastRecentlyActive() {
+        ChatSession oldest = null;
+        for (ChatSession session : sessions.values()) {
+            if (oldest == null || session.getLastActivityMillis() < oldest.getLastActivityMillis()) {
+                oldest = session;
+            }
+        }
+
+        if (oldest != null && evict(oldest)) {
+            log.debug("Session registry is full, evicted chat={}", oldest.getChatId());
+        }
+    }
+
+    private boolean evict(ChatSession session) {
+        if (!sessions.remove(session.getChatId(), session)) {
+            return false;
+        }
+
+        session.endFlow();
+        return true;
+    }
+}
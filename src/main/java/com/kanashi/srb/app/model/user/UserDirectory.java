@@ -0,0 +1,129 @@
+package com.kanashi.srb.app.model.user;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.*;
+
+/*
+ * Allow-list of Telegram users the bot serves with their time zones, logging hours and sheets,
+ * e.g. telegram_bot_target_user=111,222:Europe/Berlin::Anna,333:America/New_York:10-22:Bob.
+ * Users without a zone or hours get the defaults. The default hours are all the sheet has columns for,
+ * so a user's hours may only narrow them. Every user needs a sheet of their own: only the first one
+ * may go without and gets the default sheet, a user whose sheet is already taken is rejected
+ */
+public class UserDirectory {
+    private static final Logger log = LogManager.getLogger(UserDirectory.class);
+    private static final String USER_ID_SEPARATOR = ",";
+    private static final String USER_FIELD_SEPARATOR = ":";
+    private static final String HOURS_SEPARATOR = "-";
+
+    private final Map<Long, UserProfile> profiles;
+    private final long primaryUserId;
+
+    private UserDirectory(LinkedHashMap<Long, UserProfile> profiles) {
+        this.profiles = Collections.unmodifiableMap(profiles);
+        this.primaryUserId = profiles.keySet().iterator().next();
+    }
+
+    /*
+     * Throws IllegalArgumentException if there's no valid user in the list
+     */
+    public static UserDirectory parse(String users, ZoneId defaultZoneId, int defaultStartHour, int defaultEndHour,
+                                      @Nullable String defaultSheetName) throws IllegalArgumentException {
+        LinkedHashMap<Long, UserProfile> profiles = new LinkedHashMap<>();
+        Set<String> takenSheetNames = new HashSet<>();
+
+        if (users != null) {
+            for (String user : users.split(USER_ID_SEPARATOR)) {
+                if (user.isBlank()) {
+                    continue;
+                }
+
+                try {
+                    UserProfile profile = parseProfile(user.trim(), defaultZoneId, defaultStartHour, defaultEndHour, defaultSheetName);
+                    if (profiles.containsKey(profile.userId())) {
+                        continue;
+                    }
+                    if (!takenSheetNames.add(String.valueOf(profile.sheetName()))) {
+                        throw new IllegalArgumentException("Sheet " + profile.sheetName() + " is already taken by another user");
+                    }
+                    profiles.put(profile.userId(), profile);
+                } catch (IllegalArgumentException | DateTimeException e) {
+                    log.error("Couldn't parse user <{}>: {}", user, e.getMessage());
+                }
+            }
+        }
+
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("No valid user ID in <" + users + ">");
+        }
+
+        return new UserDirectory(profiles);
+    }
+
+    /*
+     * id[:zone[:start-end[:sheet]]], empty fields take the defaults
+     */
+    private static UserProfile parseProfile(String user, ZoneId defaultZoneId, int defaultStartHour, int defaultEndHour,
+                                            @Nullable String defaultSheetName) {
+        String[] fields = user.split(USER_FIELD_SEPARATOR);
+        if (fields.length > 4) {
+            throw new IllegalArgumentException("Too many fields");
+        }
+
+        long userId = Long.parseLong(fields[0].trim());
+        ZoneId zoneId = fields.length > 1 && !fields[1].isBlank() ? ZoneId.of(fields[1].trim()) : defaultZoneId;
+
+        int startHour = defaultStartHour;
+        int endHour = defaultEndHour;
+        if (fields.length > 2 && !fields[2].isBlank()) {
+            String[] hours = fields[2].split(HOURS_SEPARATOR);
+            if (hours.length != 2) {
+                throw new IllegalArgumentException("Logging hours should look like 9-24");
+            }
+            startHour = Integer.parseInt(hours[0].trim());
+            endHour = Integer.parseInt(hours[1].trim());
+
+            if (startHour < defaultStartHour || endHour > defaultEndHour) {
+                throw new IllegalArgumentException("Logging hours " + startHour + "-" + endHour
+                        + " are outside of the sheet's " + defaultStartHour + "-" + defaultEndHour);
+            }
+        }
+
+        String sheetName = fields.length > 3 && !fields[3].isBlank() ? fields[3].trim() : defaultSheetName;
+
+        return new UserProfile(userId, zoneId, startHour, endHour, sheetName);
+    }
+
+    public boolean isAllowed(long userId) {
+        return profiles.containsKey(userId);
+    }
+
+    public Set<Long> getUserIds() {
+        return profiles.keySet();
+    }
+
+    public Collection<UserProfile> getProfiles() {
+        return profiles.values();
+    }
+
+    @Nullable
+    public UserProfile getProfile(long userId) {
+        return profiles.get(userId);
+    }
+
+    /*
+     * First user in the list - the only one before multi-user support, owns data saved back then
+     */
+    public long getPrimaryUserId() {
+        return primaryUserId;
+    }
+
+    public int size() {
+        return profiles.size();
+    }
+}
@@ -0,0 +1,25 @@
+package com.kanashi.srb.app.model.user;
+
+import javax.annotation.Nullable;
+import java.time.ZoneId;
+
+/*
+ * Where and when a user is polled and where the answers go: the user's time zone, logging hours and sheet (tab)
+ * of the target spreadsheet. Hours are local to the zone, the end hour may be 24 (midnight),
+ * the day poll goes out at the end hour
+ */
+public record UserProfile(long userId, ZoneId zoneId, int loggingStartHour, int loggingEndHour, @Nullable String sheetName) {
+    public UserProfile {
+        if (loggingStartHour < 0 || loggingStartHour > 23 || loggingEndHour < 1 || loggingEndHour > 24 || loggingEndHour <= loggingStartHour) {
+            throw new IllegalArgumentException("Invalid logging hours " + loggingStartHour + "-" + loggingEndHour + " of user " + userId);
+        }
+    }
+
+    public boolean isPollHour(int hour) {
+        return hour >= loggingStartHour && hour < loggingEndHour || hour == getFinalHour();
+    }
+
+    public int getFinalHour() {
+        return loggingEndHour % 24;
+    }
+}
@@ -1,7 +1,9 @@
 package com.kanashi.srb.app.utility;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.time.format.TextStyle;
 import java.util.HashMap;
 import java.util.Locale;
@@ -23,6 +25,10 @@ public class DateTextFormatter {
         return dateTime.format(DateTimeFormatter.ofPattern(DATE_FORMAT));
     }
 
+    public static LocalDate parseDate(String date) throws DateTimeParseException {
+        return LocalDate.parse(date, DateTimeFormatter.ofPattern(DATE_FORMAT));
+    }
+
     public static String getWeekDay(LocalDateTime dateTime) {
         String weekDay = dateTime.getDayOfWeek().getDisplayName(TextStyle.FULL, Locale.ENGLISH);
         return WEEKDAY_TRANSLATION.getOrDefault(weekDay.toUpperCase(), "");
@@ -0,0 +1,168 @@
+package com.kanashi.srb.app.utility;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Runs tasks with the same key strictly one after another in submission order, tasks with different keys in parallel.
+ * A key with pending tasks gets one virtual thread draining its lane; the lane is removed once it's empty,
+ * so idle keys cost nothing. Each lane holds at most maxBacklogPerKey tasks (the running one included), extra tasks are rejected
+ */
+public class KeyedSerialExecutor<K> {
+    private static final Logger log = LogManager.getLogger(KeyedSerialExecutor.class);
+
+    private final String name;
+    private final int maxBacklogPerKey;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // Lanes are created, changed and removed only inside compute calls, which makes them atomic per key
+    private final ConcurrentHashMap<K, ArrayDeque<Runnable>> lanes = new ConcurrentHashMap<>();
+
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final AtomicLong maxTaskMillis = new AtomicLong();
+
+    public KeyedSerialExecutor(String name, int maxBacklogPerKey) {
+        this.name = name;
+        this.maxBacklogPerKey = maxBacklogPerKey;
+    }
+
+    /*
+     * Returns false if the key's backlog is full or the executor is shut down
+     */
+    public boolean submit(K key, Runnable task) {
+        boolean[] accepted = {false};
+        boolean[] startDrain = {false};
+
+        lanes.compute(key, (k, lane) -> {
+            if (lane == null) {
+                lane = new ArrayDeque<>();
+                startDrain[0] = true;
+            } else if (lane.size() >= maxBacklogPerKey) {
+                return lane;
+            }
+
+            lane.add(task);
+            accepted[0] = true;
+            return lane;
+        });
+
+        if (!accepted[0]) {
+            rejectedCount.increment();
+            log.warn("{}: backlog of {} is full, task rejected", name, key);
+            return false;
+        }
+
+        submittedCount.increment();
+
+        if (startDrain[0]) {
+            try {
+                executor.execute(() -> drain(key));
+            } catch (RejectedExecutionException ree) {
+                lanes.remove(key);
+                rejectedCount.increment();
+                log.warn("{}: shut down, task for {} rejected", name, key);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void drain(K key) {
+        // The running task stays at the head of the lane, so a new submit doesn't start a second drain
+        Runnable task = peek(key);
+        while (task != null) {
+            long startTime = System.currentTimeMillis();
+            try {
+                task.run();
+                completedCount.increment();
+            } catch (Throwable t) {
+                failedCount.increment();
+                log.error("{}: task for {} failed: {}", name, key, t.getMessage());
+            }
+            maxTaskMillis.accumulateAndGet(System.currentTimeMillis() - startTime, Math::max);
+
+            task = advance(key);
+        }
+    }
+
+    private Runnable peek(K key) {
+        Runnable[] head = {null};
+
+        lanes.computeIfPresent(key, (k, lane) -> {
+            head[0] = lane.peek();
+            return lane;
+        });
+
+        return head[0];
+    }
+
+    /*
+     * Drops the finished head task and returns the next one; removes the lane if there's none
+     */
+    private Runnable advance(K key) {
+        Runnable[] next = {null};
+
+        lanes.computeIfPresent(key, (k, lane) -> {
+            lane.poll();
+            next[0] = lane.peek();
+            return next[0] == null ? null : lane;
+        });
+
+        return next[0];
+    }
+
+    public int getActiveKeyCount() {
+        return lanes.size();
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    public long getMaxTaskMillis() {
+        return maxTaskMillis.get();
+    }
+
+    public String getStats() {
+        return String.format("%s: active=%d, submitted=%d, completed=%d, failed=%d, rejected=%d, maxTask=%dms",
+                name, getActiveKeyCount(), getSubmittedCount(), getCompletedCount(), getFailedCount(), getRejectedCount(), getMaxTaskMillis());
+    }
+
+    /*
+     * Stops accepting new keys and waits for running lanes to finish
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, unit)) {
+                log.warn("{}: {} lane(s) didn't finish in time", name, getActiveKeyCount());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.kanashi.srb.app.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Hierarchical timing wheel: schedule, cancel and expiry are O(1), advancing costs O(1) per tick
+ * plus an occasional cascade of one higher-level slot into the lower levels.
+ *
+ * Level L holds timeouts which are less than wheelSize^(L+1) ticks away; its slot is picked by
+ * the matching digits of the deadline tick. When lower levels wrap around, the next slot of the
+ * level above is re-distributed (as in the classic Linux kernel timer wheel). Deadlines beyond
+ * the top level are parked in its last slot and re-distributed when they get closer.
+ *
+ * Not thread-safe: the owner guards access
+ */
+public class TimingWheel<T> {
+    private final long tickMillis;
+    private final int wheelBits;
+    private final int wheelMask;
+    private final int levels;
+    private final Timeout<T>[][] slots;
+    private long currentTick;
+    private int size = 0;
+
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadlineMillis;
+        private final long deadlineTick;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T item, long deadlineMillis, long deadlineTick) {
+            this.item = item;
+            this.deadlineMillis = deadlineMillis;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public long getDeadlineMillis() {
+            return deadlineMillis;
+        }
+
+        public boolean isScheduled() {
+            return next != null;
+        }
+    }
+
+    public TimingWheel(long tickMillis, int wheelSize, int levels, long startMillis) {
+        if (tickMillis <= 0 || wheelSize < 2 || Integer.bitCount(wheelSize) != 1 || levels < 1
+                || Integer.numberOfTrailingZeros(wheelSize) * levels > 62) {
+            throw new IllegalArgumentException("Invalid timing wheel: tick=" + tickMillis + "ms, size=" + wheelSize + ", levels=" + levels);
+        }
+
+        this.tickMillis = tickMillis;
+        this.wheelBits = Integer.numberOfTrailingZeros(wheelSize);
+        this.wheelMask = wheelSize - 1;
+        this.levels = levels;
+        this.currentTick = startMillis / tickMillis;
+
+        @SuppressWarnings("unchecked")
+        Timeout<T>[][] levelSlots = (Timeout<T>[][]) new Timeout<?>[levels][wheelSize];
+        slots = levelSlots;
+        for (Timeout<T>[] level : slots) {
+            for (int slotIdx = 0; slotIdx < wheelSize; slotIdx++) {
+                Timeout<T> sentinel = new Timeout<>(null, 0L, 0L);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                level[slotIdx] = sentinel;
+            }
+        }
+    }
+
+    /*
+     * Deadlines already in the past expire on the next advance
+     */
+    public Timeout<T> schedule(T item, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<>(item, deadlineMillis, Math.ceilDiv(deadlineMillis, tickMillis));
+        place(timeout, currentTick + 1);
+        size++;
+        return timeout;
+    }
+
+    public boolean cancel(Timeout<T> timeout) {
+        if (!timeout.isScheduled()) {
+            return false;
+        }
+
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /*
+     * Moves the wheel to nowMillis and returns items whose deadline has passed, earliest tick first
+     */
+    public List<T> advance(long nowMillis) {
+        long nowTick = nowMillis / tickMillis;
+        List<T> expired = new ArrayList<>();
+
+        if (size == 0) {
+            currentTick = Math.max(currentTick, nowTick);
+            return expired;
+        }
+
+        while (currentTick < nowTick) {
+            long tick = currentTick + 1;
+
+            // Re-distribute higher levels whenever all the digits below them wrap to zero
+            for (int level = 1; level < levels && ((tick >>> ((long) wheelBits * (level - 1))) & wheelMask) == 0; level++) {
+                cascade(level, (int) ((tick >>> ((long) wheelBits * level)) & wheelMask), tick);
+            }
+
+            Timeout<T> sentinel = slots[0][(int) (tick & wheelMask)];
+            while (sentinel.next != sentinel) {
+                Timeout<T> timeout = sentinel.next;
+                unlink(timeout);
+                size--;
+                expired.add(timeout.item);
+            }
+
+            currentTick = tick;
+            if (size == 0) {
+                currentTick = nowTick;
+            }
+        }
+
+        return expired;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * When to advance next: the earliest deadline if it's in the lowest level, otherwise the earliest cascade
+     * which brings timeouts down (a lower bound of their deadlines). Long.MAX_VALUE if nothing is scheduled.
+     * Scans at most wheelSize slots per level
+     */
+    public long nextWakeupMillis() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        long wakeupTick = Long.MAX_VALUE;
+        for (int level = 0; level < levels; level++) {
+            long levelShift = (long) wheelBits * level;
+            for (int slotOffset = 1; slotOffset <= wheelMask + 1; slotOffset++) {
+                // Level 0 expires a slot at its own tick, higher levels cascade a slot at the tick it starts with
+                long slotTick = ((currentTick >>> levelShift) + slotOffset) << levelShift;
+                if (slotTick >= wakeupTick) {
+                    break;
+                }
+
+                Timeout<T> sentinel = slots[level][(int) ((slotTick >>> levelShift) & wheelMask)];
+                if (sentinel.next != sentinel) {
+                    wakeupTick = slotTick;
+                    break;
+                }
+            }
+        }
+
+        return wakeupTick == Long.MAX_VALUE ? Long.MAX_VALUE : wakeupTick * tickMillis;
+    }
+
+    private void cascade(int level, int slotIdx, long baseTick) {
+        Timeout<T> sentinel = slots[level][slotIdx];
+        while (sentinel.next != sentinel) {
+            Timeout<T> timeout = sentinel.next;
+            unlink(timeout);
+            place(timeout, baseTick);
+        }
+    }
+
+    /*
+     * baseTick is the earliest tick which is still going to be processed
+     */
+    private void place(Timeout<T> timeout, long baseTick) {
+        long targetTick = Math.max(timeout.deadlineTick, baseTick);
+        long distance = targetTick - baseTick;
+
+        int level = 0;
+        while (level < levels - 1 && distance >= (1L << ((long) wheelBits * (level + 1)))) {
+            level++;
+        }
+
+        long levelRange = 1L << ((long) wheelBits * (level + 1));
+        if (distance >= levelRange) {
+            targetTick = baseTick + levelRange - 1;
+        }
+
+        int slotIdx = (int) ((targetTick >>> ((long) wheelBits * level)) & wheelMask);
+        link(timeout, slots[level][slotIdx]);
+    }
+
+    private void link(Timeout<T> timeout, Timeout<T> sentinel) {
+        timeout.prev = sentinel.prev;
+        timeout.next = sentinel;
+        sentinel.prev.next = timeout;
+        sentinel.prev = timeout;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+}
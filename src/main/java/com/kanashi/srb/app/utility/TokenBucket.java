@@ -0,0 +1,58 @@
+package com.kanashi.srb.app.utility;
+
+import java.time.Duration;
+
+/*
+ * Token bucket: up to capacity tokens, refilled continuously at tokensPerPeriod per period.
+ * Can be paused (e.g. on a Retry-After from the remote side), in which case no tokens are handed out
+ */
+public class TokenBucket {
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefillNanos;
+    private long pausedUntilNanos;
+
+    public TokenBucket(int capacity, int tokensPerPeriod, Duration period) {
+        this.capacity = capacity;
+        this.tokensPerNano = (double) tokensPerPeriod / period.toNanos();
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+        this.pausedUntilNanos = lastRefillNanos;
+    }
+
+    /*
+     * Takes a token if one is available; otherwise returns how many nanos to wait before trying again
+     */
+    public synchronized long tryTake() {
+        long now = System.nanoTime();
+
+        if (now - pausedUntilNanos < 0) {
+            return pausedUntilNanos - now;
+        }
+
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return 0L;
+        }
+
+        return Math.max(1L, (long) Math.ceil((1.0 - tokens) / tokensPerNano));
+    }
+
+    public void take() throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = tryTake()) > 0) {
+            Thread.sleep(Duration.ofNanos(waitNanos));
+        }
+    }
+
+    public synchronized void pause(Duration duration) {
+        long until = System.nanoTime() + duration.toNanos();
+        if (until - pausedUntilNanos > 0) {
+            pausedUntilNanos = until;
+        }
+    }
+}
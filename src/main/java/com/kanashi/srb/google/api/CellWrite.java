@@ -0,0 +1,10 @@
+package com.kanashi.srb.google.api;
+
+/*
+ * Single cell value to be written as part of a batch; indices are 0-based
+ */
+public record CellWrite(int rowIdx, int colIdx, String value) {
+    public String toA1(String sheetName) {
+        return sheetName + "!" + SheetService.columnIndexToLetter(colIdx) + (rowIdx + 1);
+    }
+}
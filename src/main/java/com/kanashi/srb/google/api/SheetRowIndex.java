@@ -0,0 +1,138 @@
+package com.kanashi.srb.google.api;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * In-process index of entry (e.g. date in column A) -> 0-based row index for a sheet.
+ * Backed by a snapshot file under data/ so that restarts don't have to re-scan the sheet
+ */
+public class SheetRowIndex {
+    private static final Logger log = LogManager.getLogger(SheetRowIndex.class);
+    private static final String INDEX_FOLDER = "data/sheet_index/";
+    private static final String META_SPREADSHEET = "meta.spreadsheet";
+    private static final String META_SHEET = "meta.sheet";
+    private static final String ROW_PREFIX = "row.";
+
+    private static final Map<SheetTarget, SheetRowIndex> indexes = new ConcurrentHashMap<>();
+
+    private final SheetTarget target;
+    private final Path snapshotPath;
+    private final Map<String, Integer> rowsByEntry = new HashMap<>();
+
+    private SheetRowIndex(SheetTarget target) {
+        this.target = target;
+        this.snapshotPath = Paths.get(INDEX_FOLDER,
+                target.spreadsheetId() + "-" + Integer.toHexString(target.sheetName().hashCode()) + ".properties");
+    }
+
+    public static SheetRowIndex forTarget(SheetTarget target) {
+        return indexes.computeIfAbsent(target, t -> {
+            SheetRowIndex index = new SheetRowIndex(t);
+            index.load();
+            return index;
+        });
+    }
+
+    public synchronized int find(String entry) {
+        return rowsByEntry.getOrDefault(entry, -1);
+    }
+
+    public synchronized void put(String entry, int rowIdx) {
+        if (rowIdx < 0) {
+            return;
+        }
+
+        rowsByEntry.put(entry, rowIdx);
+        save();
+    }
+
+    public synchronized void invalidate(String entry) {
+        rowsByEntry.remove(entry);
+        save();
+    }
+
+    /*
+     * Replace the index content with a full column read; first occurrence of an entry wins
+     */
+    public synchronized void rebuild(List<String> columnValues) {
+        rowsByEntry.clear();
+
+        for (int rowIdx = 0; rowIdx < columnValues.size(); ++rowIdx) {
+            String entry = columnValues.get(rowIdx);
+            if (!entry.isEmpty() && !rowsByEntry.containsKey(entry)) {
+                rowsByEntry.put(entry, rowIdx);
+            }
+        }
+
+        save();
+        log.info("Row index for sheet {} rebuilt with {} entries", target.sheetName(), rowsByEntry.size());
+    }
+
+    public synchronized int size() {
+        return rowsByEntry.size();
+    }
+
+    private void load() {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(snapshotPath)) {
+            properties.load(in);
+        } catch (IOException ioex) {
+            log.warn("Couldn't load row index {}: {}", snapshotPath, ioex.getMessage());
+            return;
+        }
+
+        if (!target.spreadsheetId().equals(properties.getProperty(META_SPREADSHEET))
+                || !target.sheetName().equals(properties.getProperty(META_SHEET))) {
+            log.warn("Row index {} belongs to another sheet, ignoring it", snapshotPath);
+            return;
+        }
+
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(ROW_PREFIX)) {
+                try {
+                    rowsByEntry.put(key.substring(ROW_PREFIX.length()), Integer.parseInt(properties.getProperty(key)));
+                } catch (NumberFormatException nfe) {
+                    log.warn("Skipping malformed row index entry {}", key);
+                }
+            }
+        }
+
+        log.info("Row index {} loaded with {} entries", snapshotPath, rowsByEntry.size());
+    }
+
+    private void save() {
+        Properties properties = new Properties();
+        properties.setProperty(META_SPREADSHEET, target.spreadsheetId());
+        properties.setProperty(META_SHEET, target.sheetName());
+        rowsByEntry.forEach((entry, rowIdx) -> properties.setProperty(ROW_PREFIX + entry, String.valueOf(rowIdx)));
+
+        try {
+            Files.createDirectories(snapshotPath.getParent());
+            Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tempPath)) {
+                properties.store(out, "Sheet row index");
+            }
+            Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioex) {
+            log.warn("Couldn't save row index {}: {}", snapshotPath, ioex.getMessage());
+        }
+    }
+}
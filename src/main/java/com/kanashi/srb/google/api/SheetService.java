@@ -1,23 +1,30 @@
 package com.kanashi.srb.google.api;
 
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.sheets.v4.Sheets;
 import com.google.api.services.sheets.v4.SheetsScopes;
 import com.google.api.services.sheets.v4.model.AppendValuesResponse;
+import com.google.api.services.sheets.v4.model.BatchUpdateValuesRequest;
 import com.google.api.services.sheets.v4.model.ValueRange;
 import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.kanashi.srb.google.api.SheetsRateLimiter.RequestKind;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 public class SheetService {
+    private static final Logger log = LogManager.getLogger(SheetService.class);
     private static final String APPLICATION_NAME = "Self-Reflection Bot";
     private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
     private static final List<String> SCOPES = Collections.singletonList(SheetsScopes.SPREADSHEETS);
@@ -25,132 +32,227 @@ public class SheetService {
     private static final String TARGET_SPREADSHEET_ID = System.getenv("google_api_spreadsheet_id");
     private static final String TARGET_SPREADSHEET_NAME = System.getenv("google_api_sheet_name");
 
+    private static final Object SERVICE_LOCK = new Object();
+    private static volatile Sheets sheetsService;
+    private static NetHttpTransport httpTransport;
+    private static GoogleCredentials credentials;
+
+    /*
+     * Shared client: transport (TLS/keystore setup) and service account credentials are built once.
+     * Credentials cache the access token and refresh it on the request thread when a request finds it stale,
+     * so requests don't mint a new token on each call
+     */
     public static Sheets getSheetsService() throws NullPointerException, IOException, GeneralSecurityException {
-        if (GOOGLE_API_SERVICE_ACCOUNT == null) {
-            throw new NullPointerException("Google API service account not found");
+        Sheets service = sheetsService;
+        if (service != null) {
+            return service;
         }
 
-        InputStream in = new FileInputStream(GOOGLE_API_SERVICE_ACCOUNT);
+        synchronized (SERVICE_LOCK) {
+            if (sheetsService != null) {
+                return sheetsService;
+            }
 
-        GoogleCredentials credentials = ServiceAccountCredentials
-                .fromStream(in)
-                .createScoped(SCOPES);
+            if (GOOGLE_API_SERVICE_ACCOUNT == null) {
+                throw new NullPointerException("Google API service account not found");
+            }
+
+            try (InputStream in = new FileInputStream(GOOGLE_API_SERVICE_ACCOUNT)) {
+                credentials = ServiceAccountCredentials
+                        .fromStream(in)
+                        .createScoped(SCOPES);
+            }
 
-        return new Sheets.Builder(
-                GoogleNetHttpTransport.newTrustedTransport(),
-                JSON_FACTORY,
-                new HttpCredentialsAdapter(credentials))
-                .setApplicationName(APPLICATION_NAME)
-                .build();
+            // Mint the first token eagerly so the first write doesn't pay for it
+            credentials.refreshIfExpired();
+
+            httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+            sheetsService = new Sheets.Builder(
+                    httpTransport,
+                    JSON_FACTORY,
+                    new HttpCredentialsAdapter(credentials))
+                    .setApplicationName(APPLICATION_NAME)
+                    .build();
+
+            log.info("Google Sheets client initialized");
+            return sheetsService;
+        }
     }
 
-    public static int getRowIdxForEntry(String columnRange, String targetEntry) throws NullPointerException, IOException {
-        Sheets sheetService;
+    private static Sheets acquireSheetsService() throws NullPointerException {
         try {
-            sheetService = getSheetsService();
+            return getSheetsService();
         } catch (Exception ex) {
             throw new NullPointerException("Sheets service not acquired. " + ex.getMessage());
         }
+    }
+
+    public static void shutdown() {
+        synchronized (SERVICE_LOCK) {
+            if (httpTransport != null) {
+                try {
+                    httpTransport.shutdown();
+                    log.info("Google Sheets client shut down");
+                } catch (IOException ioex) {
+                    log.warn("Couldn't shut down Google Sheets transport: {}", ioex.getMessage());
+                }
+            }
+
+            sheetsService = null;
+            httpTransport = null;
+            credentials = null;
+        }
+    }
+
+    public static int getRowIdxForEntry(String columnRange, String targetEntry) throws NullPointerException, IOException {
+        return getColumnValues(columnRange).indexOf(targetEntry);
+    }
 
-        String spreadsheetId = getSpreadsheetId();
-        String dateColumnRange = getSheetName() + "!" + columnRange;
+    /*
+     * First cell of every row in the range, trimmed; empty rows are kept as "" so list index = row index
+     */
+    public static List<String> getColumnValues(String columnRange) throws NullPointerException, IOException {
+        return getColumnValues(SheetTarget.getDefault(), columnRange);
+    }
 
-        ValueRange response = sheetService.spreadsheets().values()
-                .get(spreadsheetId, dateColumnRange)
-                .execute();
+    public static List<String> getColumnValues(SheetTarget target, String columnRange) throws NullPointerException, IOException {
+        Sheets sheetService = acquireSheetsService();
+
+        String spreadsheetId = target.spreadsheetId();
+        String dateColumnRange = target.sheetName() + "!" + columnRange;
+
+        ValueRange response = SheetsRateLimiter.execute(RequestKind.READ,
+                sheetService.spreadsheets().values()
+                        .get(spreadsheetId, dateColumnRange)::execute);
 
         List<List<Object>> values = response.getValues();
 
         if (values == null) {
-            return -1;
+            return Collections.emptyList();
         }
 
-        for (int rowIndex = 0; rowIndex < values.size(); ++rowIndex) {
-            List<Object> row = values.get(rowIndex);
-            if (!row.isEmpty()) {
-                String cellText = row.getFirst().toString().trim();
-                if (cellText.equals(targetEntry)) {
-                    return rowIndex;
-                }
-            }
+        List<String> columnValues = new ArrayList<>(values.size());
+        for (List<Object> row : values) {
+            columnValues.add(row.isEmpty() ? "" : row.getFirst().toString().trim());
         }
 
-        return -1;
+        return columnValues;
     }
 
     public static int getColumnIdxForRowEntry(int rowIdx, String targetEntry) throws NullPointerException, IOException {
-        Sheets sheetService;
-        try {
-            sheetService = getSheetsService();
-        } catch (Exception ex) {
-            throw new NullPointerException("Sheets service not acquired. " + ex.getMessage());
-        }
+        return getRowValues(rowIdx).indexOf(targetEntry);
+    }
 
-        String spreadsheetId = getSpreadsheetId();
-        String dateColumnRange = getSheetName() + "!" + (rowIdx + 1) + ":" + (rowIdx + 1);
+    /*
+     * Cells of a single row, trimmed
+     */
+    public static List<String> getRowValues(int rowIdx) throws NullPointerException, IOException {
+        return getRowValues(SheetTarget.getDefault(), rowIdx);
+    }
+
+    public static List<String> getRowValues(SheetTarget target, int rowIdx) throws NullPointerException, IOException {
+        Sheets sheetService = acquireSheetsService();
 
-        ValueRange response = sheetService.spreadsheets().values()
-                .get(spreadsheetId, dateColumnRange)
-                .execute();
+        String spreadsheetId = target.spreadsheetId();
+        String rowRange = target.sheetName() + "!" + (rowIdx + 1) + ":" + (rowIdx + 1);
+
+        ValueRange response = SheetsRateLimiter.execute(RequestKind.READ,
+                sheetService.spreadsheets().values()
+                        .get(spreadsheetId, rowRange)::execute);
 
         List<List<Object>> values = response.getValues();
 
-        if (values == null) {
-            return -1;
+        if (values == null || values.isEmpty()) {
+            return Collections.emptyList();
         }
 
-        if (!values.isEmpty()) {
-            List<Object> row = values.getFirst();
-            for (int columnIdx = 0; columnIdx < row.size(); ++columnIdx) {
-                if (row.get(columnIdx).toString().trim().equals(targetEntry)) {
-                    return columnIdx;
-                }
-            }
+        List<String> rowValues = new ArrayList<>(values.getFirst().size());
+        for (Object cell : values.getFirst()) {
+            rowValues.add(cell.toString().trim());
         }
 
-        return -1;
+        return rowValues;
     }
 
     public static void updateCellValue(int rowIdx, int colIdx, String value) throws IOException {
-        Sheets sheetService;
-        try {
-            sheetService = getSheetsService();
-        } catch (Exception ex) {
-            throw new NullPointerException("Sheets service not acquired. " + ex.getMessage());
-        }
+        Sheets sheetService = acquireSheetsService();
 
         ValueRange body = new ValueRange()
                 .setValues(List.of(Collections.singletonList(value)));  // 2D list: one row, one column
 
         String range = getSheetName() + "!" + columnIndexToLetter(colIdx) + (rowIdx + 1);
 
-        sheetService.spreadsheets().values()
-                .update(getSpreadsheetId(), range, body)
+        SheetsRateLimiter.execute(RequestKind.WRITE,
+                sheetService.spreadsheets().values()
+                        .update(getSpreadsheetId(), range, body)
+                        .setValueInputOption("RAW")::execute);
+    }
+
+    public static void batchUpdateCells(List<CellWrite> cellWrites) throws NullPointerException, IOException {
+        batchUpdateCells(SheetTarget.getDefault(), cellWrites);
+    }
+
+    public static void batchUpdateCells(SheetTarget target, List<CellWrite> cellWrites) throws NullPointerException, IOException {
+        if (cellWrites.isEmpty()) {
+            return;
+        }
+
+        Sheets sheetService = acquireSheetsService();
+
+        List<ValueRange> data = new ArrayList<>(cellWrites.size());
+        for (CellWrite cellWrite : cellWrites) {
+            data.add(new ValueRange()
+                    .setRange(cellWrite.toA1(target.sheetName()))
+                    .setValues(List.of(Collections.singletonList(cellWrite.value()))));
+        }
+
+        BatchUpdateValuesRequest body = new BatchUpdateValuesRequest()
                 .setValueInputOption("RAW")
-                .execute();
+                .setData(data);
+
+        SheetsRateLimiter.execute(RequestKind.WRITE,
+                sheetService.spreadsheets().values()
+                        .batchUpdate(target.spreadsheetId(), body)::execute);
     }
 
     public static int appendRow(List<Object> rowValues) throws NullPointerException, IOException {
-        Sheets sheetService;
-        try {
-            sheetService = getSheetsService();
-        } catch (Exception ex) {
-            throw new NullPointerException("Sheets service not acquired. " + ex.getMessage());
-        }
+        return appendRow(SheetTarget.getDefault(), rowValues);
+    }
+
+    public static int appendRow(SheetTarget target, List<Object> rowValues) throws NullPointerException, IOException {
+        Sheets sheetService = acquireSheetsService();
 
         ValueRange body = new ValueRange().setValues(Collections.singletonList(rowValues));
 
-        AppendValuesResponse appendValuesResponse =
+        AppendValuesResponse appendValuesResponse = SheetsRateLimiter.execute(RequestKind.WRITE,
                 sheetService.spreadsheets().values()
-                                .append(getSpreadsheetId(), getSheetName(), body)
+                                .append(target.spreadsheetId(), target.sheetName(), body)
                                 .setValueInputOption("RAW")
-                                .setInsertDataOption("INSERT_ROWS")
-                                .execute();
+                                .setInsertDataOption("INSERT_ROWS")::execute);
 
         String updatedRange = appendValuesResponse.getUpdates().getUpdatedRange();
         return extractRowIndexFromRange(updatedRange) - 1;
     }
 
+    /*
+     * Appends all rows with one request; returns 0-based index of the first appended row
+     */
+    public static int appendRows(SheetTarget target, List<List<Object>> rows) throws NullPointerException, IOException {
+        Sheets sheetService = acquireSheetsService();
+
+        ValueRange body = new ValueRange().setValues(rows);
+
+        AppendValuesResponse appendValuesResponse = SheetsRateLimiter.execute(RequestKind.WRITE,
+                sheetService.spreadsheets().values()
+                                .append(target.spreadsheetId(), target.sheetName(), body)
+                                .setValueInputOption("RAW")
+                                .setInsertDataOption("INSERT_ROWS")::execute);
+
+        String updatedRange = appendValuesResponse.getUpdates().getUpdatedRange();
+        // The range ends at the last appended row
+        return extractRowIndexFromRange(updatedRange) - rows.size();
+    }
+
     public static int extractRowIndexFromRange(String a1Range) {
         // Example input: "Sheet1!A10:A10"
         String[] parts = a1Range.split("!");
@@ -0,0 +1,10 @@
+package com.kanashi.srb.google.api;
+
+/*
+ * Spreadsheet and sheet (tab) pair which requests are addressed to
+ */
+public record SheetTarget(String spreadsheetId, String sheetName) {
+    public static SheetTarget getDefault() {
+        return new SheetTarget(SheetService.getSpreadsheetId(), SheetService.getSheetName());
+    }
+}
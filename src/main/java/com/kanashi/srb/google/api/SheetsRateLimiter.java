@@ -0,0 +1,135 @@
+package com.kanashi.srb.google.api;
+
+import com.google.api.client.http.HttpResponseException;
+import com.kanashi.srb.app.utility.TokenBucket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Shared gate for all Sheets API traffic. Reads and writes take tokens from buckets sized to
+ * the per-minute Sheets quotas; writes take priority over lookups. 429 and 5xx responses are
+ * retried with jittered exponential backoff, honoring Retry-After when the API sends one
+ */
+public class SheetsRateLimiter {
+    private static final Logger log = LogManager.getLogger(SheetsRateLimiter.class);
+
+    public enum RequestKind {
+        READ,
+        WRITE
+    }
+
+    @FunctionalInterface
+    public interface SheetsCall<T> {
+        T execute() throws IOException;
+    }
+
+    // Sheets API quota: 60 read and 60 write requests per minute per user
+    private static final int QUOTA_REQUESTS_PER_MINUTE = 60;
+    private static final int QUOTA_BURST = 10;
+
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long BACKOFF_BASE_MILLIS = 1000L;
+    private static final long BACKOFF_MAX_MILLIS = 64_000L;
+
+    private static final TokenBucket readBucket = new TokenBucket(QUOTA_BURST, QUOTA_REQUESTS_PER_MINUTE, Duration.ofMinutes(1));
+    private static final TokenBucket writeBucket = new TokenBucket(QUOTA_BURST, QUOTA_REQUESTS_PER_MINUTE, Duration.ofMinutes(1));
+
+    private static final Object priorityLock = new Object();
+    private static int waitingWrites = 0;
+
+    public static <T> T execute(RequestKind kind, SheetsCall<T> call) throws IOException {
+        for (int attempt = 1; ; ++attempt) {
+            acquire(kind);
+
+            try {
+                return call.execute();
+            } catch (HttpResponseException hre) {
+                int statusCode = hre.getStatusCode();
+                if (!isRetryable(statusCode) || attempt >= MAX_ATTEMPTS) {
+                    throw hre;
+                }
+
+                long delayMillis = getRetryAfterMillis(hre.getHeaders().getRetryAfter());
+                if (delayMillis < 0) {
+                    delayMillis = getBackoffMillis(attempt);
+                }
+
+                // Pause the whole bucket so that other callers slow down as well
+                getBucket(kind).pause(Duration.ofMillis(delayMillis));
+                log.warn("Sheets {} request failed with status {}, retry #{} in {} ms", kind, statusCode, attempt, delayMillis);
+            }
+        }
+    }
+
+    private static void acquire(RequestKind kind) throws InterruptedIOException {
+        try {
+            if (kind == RequestKind.WRITE) {
+                synchronized (priorityLock) {
+                    waitingWrites++;
+                }
+
+                try {
+                    writeBucket.take();
+                } finally {
+                    synchronized (priorityLock) {
+                        waitingWrites--;
+                        priorityLock.notifyAll();
+                    }
+                }
+            } else {
+                synchronized (priorityLock) {
+                    while (waitingWrites > 0) {
+                        priorityLock.wait();
+                    }
+                }
+
+                readBucket.take();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Sheets quota");
+        }
+    }
+
+    private static TokenBucket getBucket(RequestKind kind) {
+        return kind == RequestKind.WRITE ? writeBucket : readBucket;
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    private static long getBackoffMillis(int attempt) {
+        long ceiling = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << (attempt - 1));
+        // Equal jitter: uniformly random in [ceiling / 2, ceiling]
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /*
+     * Retry-After is either delay in seconds or an HTTP date; -1 if absent or unreadable
+     */
+    private static long getRetryAfterMillis(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return -1L;
+        }
+
+        try {
+            return Math.max(0L, Long.parseLong(retryAfter.trim()) * 1000L);
+        } catch (NumberFormatException nfe) {
+            try {
+                ZonedDateTime retryAt = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0L, Duration.between(ZonedDateTime.now(retryAt.getZone()), retryAt).toMillis());
+            } catch (DateTimeParseException dtpe) {
+                return -1L;
+            }
+        }
+    }
+}
@@ -2,75 +2,129 @@ package com.kanashi.srb.telegram.bot;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
 import org.telegram.telegrambots.meta.api.methods.CopyMessage;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.MessageId;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Every helper has an async variant which only queues the call and returns its future, so independent calls
+ * (e.g. editing a menu and answering its callback) run concurrently. Async variants log failures themselves;
+ * the blocking variants wait for the same call and give null if it failed
+ */
 public abstract class BasicBot extends TelegramLongPollingBot {
     private static final Logger log = LogManager.getLogger(BasicBot.class);
+
+    // Threads of the executeAsync pool, i.e. how many calls can wait for Telegram at the same time
+    private static final int MAX_CONCURRENT_CALLS = 16;
+
     private final String botUserName;
+    // Every call to Telegram goes through it, so bursts stay within Telegram's rate limits.
+    // Created on the first call, once the bot is fully constructed
+    private final Object outboundLock = new Object();
+    @Nullable
+    private volatile OutboundScheduler outbound;
 
     public BasicBot(String botToken, String botUserName) {
-        super(botToken);
+        super(buildOptions(), botToken);
         this.botUserName = botUserName;
     }
 
+    private OutboundScheduler getOutbound() {
+        OutboundScheduler scheduler = outbound;
+        if (scheduler == null) {
+            synchronized (outboundLock) {
+                scheduler = outbound;
+                if (scheduler == null) {
+                    scheduler = new OutboundScheduler(this);
+                    outbound = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    private static DefaultBotOptions buildOptions() {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setMaxThreads(MAX_CONCURRENT_CALLS);
+        return options;
+    }
+
     @Override
     public String getBotUsername() {
         return this.botUserName;
     }
 
     public void sendText(Long who, String what){
+        await(sendTextAsync(who, what));
+    }
+
+    public CompletableFuture<Message> sendTextAsync(Long who, String what){
         SendMessage sm = SendMessage.builder()
                 .chatId(who.toString())
                 .parseMode("HTML")
                 .text(what).build();
-        try {
-            execute(sm);
-        } catch (TelegramApiException tapi) {
-            log.error("Couldn't send text to {} due to an exception: {}", who, tapi.getMessage());
-        }
+        return logFailure(getOutbound().submit(OutboundScheduler.Priority.MESSAGE, who, sm), "Couldn't send text to {} due to an exception: {}", who);
     }
 
     public void copyMessage(Long who, Integer msgId){
+        await(copyMessageAsync(who, msgId));
+    }
+
+    public CompletableFuture<MessageId> copyMessageAsync(Long who, Integer msgId){
         CopyMessage cm = CopyMessage.builder()
                 .fromChatId(who.toString())
                 .chatId(who.toString())
                 .messageId(msgId)
                 .build();
-        try {
-            execute(cm);
-        } catch (TelegramApiException tapi) {
-            log.error("Couldn't copy message of {} due to an exception: {}", who, tapi.getMessage());
-        }
+        return logFailure(getOutbound().submit(OutboundScheduler.Priority.MESSAGE, who, cm), "Couldn't copy message of {} due to an exception: {}", who);
+    }
+
+    /*
+     * Returns the sent message or null if it couldn't be sent
+     */
+    @Nullable
+    public Message sendMenu(Long who, String txt, InlineKeyboardMarkup kb){
+        return await(sendMenuAsync(who, txt, kb));
     }
 
-    public void sendMenu(Long who, String txt, InlineKeyboardMarkup kb){
+    public CompletableFuture<Message> sendMenuAsync(Long who, String txt, InlineKeyboardMarkup kb){
         SendMessage sm = SendMessage.builder().chatId(who.toString())
                 .text(txt)
                 .parseMode("HTML")
                 .replyMarkup(kb)
                 .build();
-        try {
-            execute(sm);
-        } catch (TelegramApiException tapi) {
-            log.error("Couldn't send menu to {} due to an exception: {}", who, tapi.getMessage());
-        }
+        return logFailure(getOutbound().submit(OutboundScheduler.Priority.MESSAGE, who, sm), "Couldn't send menu to {} due to an exception: {}", who);
     }
 
     public void editMessageCallback(CallbackQuery callbackQuery, String newText) {
+        await(editMessageCallbackAsync(callbackQuery, newText));
+    }
+
+    public CompletableFuture<Serializable> editMessageCallbackAsync(CallbackQuery callbackQuery, String newText) {
         Long id = callbackQuery.getFrom().getId();
         Integer msgId = callbackQuery.getMessage().getMessageId();
 
-        editMessage(id, msgId, newText);
+        return editMessageAsync(id, msgId, newText);
     }
 
     public void editMessage(Long fromWhoId, Integer messageId, String newText) {
+        await(editMessageAsync(fromWhoId, messageId, newText));
+    }
+
+    public CompletableFuture<Serializable> editMessageAsync(Long fromWhoId, Integer messageId, String newText) {
         EditMessageText newTxt = EditMessageText.builder()
                 .chatId(fromWhoId.toString())
                 .messageId(messageId)
@@ -79,24 +133,59 @@ public abstract class BasicBot extends TelegramLongPollingBot {
 
         newTxt.setText(newText);
 
-        try {
-            execute(newTxt);
-        } catch (TelegramApiException e) {
-            log.error("Couldn't edit message [id={}] due to an exception: {}", messageId, e.getMessage());
-        }
+        return logFailure(getOutbound().submit(OutboundScheduler.Priority.EDIT, fromWhoId, newTxt), "Couldn't edit message [id={}] due to an exception: {}", messageId);
     }
 
 
     public void answerCallback(CallbackQuery callbackQuery) {
+        await(answerCallbackAsync(callbackQuery));
+    }
+
+    public CompletableFuture<Boolean> answerCallbackAsync(CallbackQuery callbackQuery) {
         String queryId = callbackQuery.getId();
 
         AnswerCallbackQuery close = AnswerCallbackQuery.builder()
                 .callbackQueryId(queryId).build();
 
+        return logFailure(getOutbound().submit(OutboundScheduler.Priority.CALLBACK_ANSWER, OutboundScheduler.NO_CHAT, close),
+                "Couldn't answer callback query [id={}] due to an exception: {}", queryId);
+    }
+
+    private static <T> CompletableFuture<T> logFailure(CompletableFuture<T> future, String errorMessage, Object subject) {
+        future.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                log.error(errorMessage, subject, throwable.getMessage());
+            }
+        });
+        return future;
+    }
+
+    /*
+     * Waits for a queued call; a failed call (already logged) gives null
+     */
+    @Nullable
+    private static <T> T await(CompletableFuture<T> future) {
         try {
-            execute(close);
-        } catch (TelegramApiException e) {
-            log.error("Couldn't answer callback query [id={}] due to an exception: {}", queryId, e.getMessage());
+            return future.join();
+        } catch (CompletionException ce) {
+            return null;
+        }
+    }
+
+    public int getOutboundQueueDepth() {
+        OutboundScheduler scheduler = outbound;
+        return scheduler == null ? 0 : scheduler.getQueueDepth();
+    }
+
+    /*
+     * Lets queued calls go out (within the timeout) before the bot stops
+     */
+    public void shutdownOutbound(long timeout, TimeUnit unit) {
+        OutboundScheduler scheduler = outbound;
+        if (scheduler == null) {
+            // Nothing was ever sent
+            return;
         }
+        scheduler.shutdown(timeout, unit);
     }
 }
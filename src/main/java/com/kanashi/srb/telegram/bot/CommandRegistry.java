@@ -0,0 +1,133 @@
+package com.kanashi.srb.telegram.bot;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/*
+ * Bot commands built once at startup: "/name" -> handler in a hash map, so dispatching is a single lookup
+ * without reflection. Every command says in which modes it's enabled; the registry runs in one mode at a time
+ */
+public class CommandRegistry {
+    public enum Mode {
+        PRODUCTION,
+        DEBUG
+    }
+
+    public enum Result {
+        EXECUTED,
+        UNKNOWN,
+        DISABLED
+    }
+
+    public static final Set<Mode> ANY_MODE = Collections.unmodifiableSet(EnumSet.allOf(Mode.class));
+    public static final Set<Mode> DEBUG_ONLY = Collections.unmodifiableSet(EnumSet.of(Mode.DEBUG));
+
+    private static final char COMMAND_PREFIX = '/';
+
+    public interface Command {
+        void execute(CommandContext context);
+    }
+
+    /*
+     * Chat and user the command came from and its whitespace-separated arguments
+     */
+    public record CommandContext(long chatId, long userId, List<String> args) {
+        @Nullable
+        public String arg(int argIdx) {
+            return argIdx < args.size() ? args.get(argIdx) : null;
+        }
+
+        /*
+         * Returns defaultValue if there's no such argument or it isn't a non-negative int
+         */
+        public int intArg(int argIdx, int defaultValue) {
+            String arg = arg(argIdx);
+            if (arg == null || arg.isEmpty() || arg.length() > 9) {
+                return defaultValue;
+            }
+
+            int value = 0;
+            for (int charIdx = 0; charIdx < arg.length(); charIdx++) {
+                char c = arg.charAt(charIdx);
+                if (c < '0' || c > '9') {
+                    return defaultValue;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+    }
+
+    private record Entry(String name, String description, Set<Mode> modes, Command command) {
+    }
+
+    private final Map<String, Entry> commands = new HashMap<>();
+    private volatile Mode mode = Mode.PRODUCTION;
+
+    /*
+     * Not thread-safe: register everything before updates start coming. The leading '/' is optional
+     */
+    public void register(String name, String description, Set<Mode> modes, Command command) {
+        String commandName = name.charAt(0) == COMMAND_PREFIX ? name : COMMAND_PREFIX + name;
+        if (commands.putIfAbsent(commandName, new Entry(commandName, description, Set.copyOf(modes), command)) != null) {
+            throw new IllegalStateException("Command " + commandName + " is already registered");
+        }
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public Result dispatch(String commandName, CommandContext context) {
+        Entry entry = commands.get(commandName);
+        if (entry == null) {
+            return Result.UNKNOWN;
+        }
+        if (!entry.modes().contains(mode)) {
+            return Result.DISABLED;
+        }
+
+        entry.command().execute(context);
+        return Result.EXECUTED;
+    }
+
+    /*
+     * "name - description" lines of the commands enabled in the current mode, sorted by name
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        commands.values().stream()
+                .filter(entry -> entry.modes().contains(mode))
+                .sorted(Comparator.comparing(Entry::name))
+                .forEach(entry -> sb.append(entry.name()).append(" - ").append(entry.description()).append('\n'));
+        return sb.toString();
+    }
+
+    /*
+     * "/cmd a  b" -> [a, b]
+     */
+    public static List<String> parseArgs(@Nullable String text) {
+        if (text == null) {
+            return List.of();
+        }
+
+        List<String> args = new ArrayList<>();
+        int argStart = -1;
+        for (int charIdx = 0; charIdx <= text.length(); charIdx++) {
+            boolean isSpace = charIdx == text.length() || Character.isWhitespace(text.charAt(charIdx));
+            if (isSpace && argStart >= 0) {
+                args.add(text.substring(argStart, charIdx));
+                argStart = -1;
+            } else if (!isSpace && argStart < 0) {
+                argStart = charIdx;
+            }
+        }
+
+        // The first token is the command itself
+        return args.isEmpty() ? List.of() : List.copyOf(args.subList(1, args.size()));
+    }
+}
@@ -0,0 +1,221 @@
+package com.kanashi.srb.telegram.bot;
+
+import com.kanashi.srb.app.utility.TokenBucket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Single gate for outgoing Telegram calls. Requests wait in a priority queue - callback answers first,
+ * then edits, then new messages - and leave it no faster than Telegram allows: about 30 calls per second
+ * overall and one message per second per chat. A chat that isn't ready yet doesn't hold up other chats.
+ * 429 responses are retried after the retry_after Telegram sends, so messages aren't lost.
+ * Calls are made with executeAsync, so slow round trips don't hold up the queue
+ */
+public class OutboundScheduler {
+    private static final Logger log = LogManager.getLogger(OutboundScheduler.class);
+
+    public enum Priority {
+        CALLBACK_ANSWER,
+        EDIT,
+        MESSAGE
+    }
+
+    // Requests which aren't bound to a chat (e.g. callback answers) aren't paced per chat
+    public static final long NO_CHAT = 0L;
+
+    private static final int GLOBAL_CALLS_PER_SECOND = 30;
+    private static final long CHAT_INTERVAL_NANOS = Duration.ofSeconds(1).toNanos();
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+    private static final long IDLE_WAIT_NANOS = Duration.ofSeconds(1).toNanos();
+    private static final int CHAT_PACING_SWEEP_SIZE = 10000;
+
+    private static final class OutboundRequest<T extends Serializable> {
+        private final Priority priority;
+        private final long seq;
+        private final long chatId;
+        private final BotApiMethod<T> method;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int attempt = 1;
+        private volatile long notBeforeNanos;
+        private long readyAtNanos;
+
+        private OutboundRequest(Priority priority, long seq, long chatId, BotApiMethod<T> method) {
+            this.priority = priority;
+            this.seq = seq;
+            this.chatId = chatId;
+            this.method = method;
+            this.notBeforeNanos = System.nanoTime();
+        }
+    }
+
+    private final AbsSender sender;
+    private final TokenBucket globalBucket = new TokenBucket(GLOBAL_CALLS_PER_SECOND, GLOBAL_CALLS_PER_SECOND, Duration.ofSeconds(1));
+    private final AtomicLong nextSeq = new AtomicLong();
+    // Calls sent but not answered yet; a 429 among them puts the request back into the queue
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    private final PriorityBlockingQueue<OutboundRequest<?>> queue = new PriorityBlockingQueue<>(64,
+            Comparator.<OutboundRequest<?>, Priority>comparing(request -> request.priority).thenComparingLong(request -> request.seq));
+    // Requests whose chat isn't ready yet; owned by the dispatcher thread, its size is published in parkedCount
+    private final PriorityQueue<OutboundRequest<?>> parked = new PriorityQueue<>(Comparator.comparingLong(request -> request.readyAtNanos));
+    private final AtomicInteger parkedCount = new AtomicInteger();
+    // Chat id -> earliest nanoTime of the next call to that chat
+    private final ConcurrentHashMap<Long, Long> chatReadyAtNanos = new ConcurrentHashMap<>();
+
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    public OutboundScheduler(AbsSender sender) {
+        this.sender = sender;
+        this.dispatcher = Thread.ofPlatform().name("telegram-outbound").daemon().start(this::dispatch);
+    }
+
+    public <T extends Serializable> CompletableFuture<T> submit(Priority priority, long chatId, BotApiMethod<T> method) {
+        OutboundRequest<T> request = new OutboundRequest<>(priority, nextSeq.getAndIncrement(), chatId, method);
+
+        if (!running) {
+            request.future.completeExceptionally(new RejectedExecutionException("Outbound scheduler is shut down"));
+            return request.future;
+        }
+
+        queue.add(request);
+        return request.future;
+    }
+
+    public int getQueueDepth() {
+        return queue.size() + parkedCount.get();
+    }
+
+    private void dispatch() {
+        try {
+            while (running || inFlightCount.get() > 0 || !queue.isEmpty() || !parked.isEmpty()) {
+                long now = System.nanoTime();
+                while (!parked.isEmpty() && parked.peek().readyAtNanos - now <= 0) {
+                    queue.add(parked.poll());
+                    parkedCount.decrementAndGet();
+                }
+
+                long waitNanos = parked.isEmpty() ? IDLE_WAIT_NANOS : parked.peek().readyAtNanos - now;
+                OutboundRequest<?> request = queue.poll(Math.max(1L, waitNanos), TimeUnit.NANOSECONDS);
+                if (request == null) {
+                    continue;
+                }
+
+                now = System.nanoTime();
+                long readyAt = Math.max(request.notBeforeNanos, chatReadyAtNanos.getOrDefault(request.chatId, now));
+                if (readyAt - now > 0) {
+                    request.readyAtNanos = readyAt;
+                    parked.add(request);
+                    parkedCount.incrementAndGet();
+                    continue;
+                }
+
+                globalBucket.take();
+
+                if (request.chatId != NO_CHAT) {
+                    chatReadyAtNanos.put(request.chatId, System.nanoTime() + CHAT_INTERVAL_NANOS);
+                    if (chatReadyAtNanos.size() > CHAT_PACING_SWEEP_SIZE) {
+                        long sweepTime = System.nanoTime();
+                        chatReadyAtNanos.values().removeIf(chatReadyAt -> chatReadyAt - sweepTime <= 0);
+                    }
+                }
+
+                send(request);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        failPending(queue);
+        failPending(parked);
+        parkedCount.set(0);
+    }
+
+    private <T extends Serializable> void send(OutboundRequest<T> request) {
+        inFlightCount.incrementAndGet();
+
+        CompletableFuture<T> call;
+        try {
+            call = sender.executeAsync(request.method);
+        } catch (TelegramApiException | RuntimeException e) {
+            // Validation errors are thrown before the call is made
+            call = CompletableFuture.failedFuture(e);
+        }
+
+        call.whenComplete((result, throwable) -> {
+            try {
+                if (throwable == null) {
+                    request.future.complete(result);
+                } else {
+                    onFailure(request, throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable);
+                }
+            } finally {
+                inFlightCount.decrementAndGet();
+            }
+        });
+    }
+
+    private void onFailure(OutboundRequest<?> request, Throwable throwable) {
+        if (!(throwable instanceof TelegramApiRequestException tare) || tare.getErrorCode() == null
+                || tare.getErrorCode() != HTTP_TOO_MANY_REQUESTS || request.attempt >= MAX_ATTEMPTS) {
+            request.future.completeExceptionally(throwable);
+            return;
+        }
+
+        Integer retryAfter = tare.getParameters() != null ? tare.getParameters().getRetryAfter() : null;
+        long retryAfterNanos = Duration.ofSeconds(retryAfter != null ? retryAfter : DEFAULT_RETRY_AFTER_SECONDS).toNanos();
+
+        if (request.chatId != NO_CHAT) {
+            chatReadyAtNanos.merge(request.chatId, System.nanoTime() + retryAfterNanos, Math::max);
+        } else {
+            globalBucket.pause(Duration.ofNanos(retryAfterNanos));
+        }
+
+        log.warn("Telegram {} to chat {} hit the rate limit, retry #{} in {} s",
+                request.method.getMethod(), request.chatId, request.attempt, Duration.ofNanos(retryAfterNanos).toSeconds());
+
+        request.attempt++;
+        request.notBeforeNanos = System.nanoTime() + retryAfterNanos;
+        queue.add(request);
+    }
+
+    private void failPending(Queue<OutboundRequest<?>> pending) {
+        OutboundRequest<?> request;
+        while ((request = pending.poll()) != null) {
+            request.future.completeExceptionally(new RejectedExecutionException("Outbound scheduler is shut down"));
+        }
+    }
+
+    /*
+     * Sends what's already queued and waits for the answers (retries included) within the timeout, fails the rest
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+
+        try {
+            dispatcher.join(unit.toMillis(timeout));
+            if (dispatcher.isAlive()) {
+                log.warn("Telegram outbound queue didn't drain in time, {} request(s) dropped", getQueueDepth());
+                dispatcher.interrupt();
+                dispatcher.join();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -5,44 +5,38 @@ import com.kanashi.srb.app.flow.PollActivityFlow;
 import com.kanashi.srb.app.model.reflection.PollReflectionQueue;
 import com.kanashi.srb.app.model.reflection.Reflection;
 import com.kanashi.srb.app.model.reflection.ReflectionWriter;
+import com.kanashi.srb.app.model.user.ChatSession;
+import com.kanashi.srb.app.model.user.SessionRegistry;
+import com.kanashi.srb.app.model.user.UserDirectory;
 import com.kanashi.srb.app.utility.DateTextFormatter;
+import com.kanashi.srb.app.utility.KeyedSerialExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.Update;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import com.kanashi.srb.telegram.bot.model.ext.CallbackQueryExt;
 import com.kanashi.srb.telegram.bot.model.menu.QuestionMenu;
 
-import java.lang.reflect.Method;
 import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.random.RandomGenerator;
 
 public class SelfReflectionBot extends BasicBot {
     private static final Logger log = LogManager.getLogger(SelfReflectionBot.class);
     private static final String BOT_USERNAME = "SelfReflectionBot";
-    private long targetUserId = 0L;
-    private BotFlow currentFlow;
+    private static final long SESSION_IDLE_TTL_MILLIS = 24 * 60 * 60 * 1000L; // 1 day
+    private static final int SESSION_MAX_COUNT = 10000;
+    private static final int UPDATE_BACKLOG_PER_CHAT = 100;
+    private static final long UPDATE_DISPATCHER_SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final UserDirectory userDirectory;
+    private final SessionRegistry sessionRegistry = new SessionRegistry(SESSION_IDLE_TTL_MILLIS, SESSION_MAX_COUNT);
+    // Updates of one chat are handled in order, different chats in parallel
+    private final KeyedSerialExecutor<Long> updateDispatcher = new KeyedSerialExecutor<>("Update dispatcher", UPDATE_BACKLOG_PER_CHAT);
+    private final UpdateRouter updateRouter = new UpdateRouter();
+    private final CommandRegistry commandRegistry = new CommandRegistry();
     private PollReflectionQueue pollReflectionQueue;
-    private boolean debugMode = false;
-
-    private enum UpdateType {
-        MESSAGE("Message"),
-        CALLBACK_QUERY("Callback Query"),
-        UNKNOWN("Unknown");
-
-
-        private final String displayName;
-
-        UpdateType(String displayName) {
-            this.displayName = displayName;
-        }
-
-        @Override
-        public String toString() {
-            return displayName;
-        }
-    }
 
     private static final String MSG_POLL_QUEUE_NULL = "[Bot: Add Poll] Poll Queue is not associated";
 
@@ -50,159 +44,196 @@ public class SelfReflectionBot extends BasicBot {
     private static final String MESSAGE__REQUEST_NOT_FOUND = "[Удалено, так как запрос не найден. Период хранения запросов - 7 дней]";
     private static final String MESSAGE__REQUEST_ACCEPTED = "Запрос на запись принят \u2705";
     private static final String MESSAGE__REQUEST_SKIPPED = "Запрос на запись пропущен \u274C";
+    private static final String MESSAGE__REQUEST_EXPIRED = "Запрос на запись истёк \u231B";
 
-    public SelfReflectionBot(String botToken, long targetUserId) {
+    public SelfReflectionBot(String botToken, UserDirectory userDirectory) {
         super(botToken, BOT_USERNAME);
-        this.targetUserId = targetUserId;
+        this.userDirectory = userDirectory;
+    }
+
+    /*
+     * Call once after construction and before the bot is registered: handlers are bound to this instance
+     */
+    public void registerRoutes() {
+        updateRouter.register(UpdateRouter.Kind.CALLBACK, QuestionMenu.getPurpose(), this::handlePollAnswer);
+        updateRouter.registerDefault(UpdateRouter.Kind.COMMAND, this::handleCommand);
+        // Free text is an answer to the chat's active flow, if there is one
+        updateRouter.registerDefault(UpdateRouter.Kind.TEXT, BotFlow::routeToActiveFlow);
+        PollActivityFlow.registerRoutes(updateRouter);
+
+        commandRegistry.register("simulatePoll", "poll for the current hour", CommandRegistry.DEBUG_ONLY, this::simulatePoll);
+        commandRegistry.register("simulateRandomPoll", "poll for a random (or the given) hour: [hour]", CommandRegistry.DEBUG_ONLY, this::simulateRandomPoll);
+        commandRegistry.register("simulateDayPoll", "poll for the whole day", CommandRegistry.DEBUG_ONLY, this::simulateDayPoll);
+        commandRegistry.register("printQueue", "log the poll queue", CommandRegistry.DEBUG_ONLY, this::printQueue);
+        commandRegistry.register("help", "list available commands", CommandRegistry.DEBUG_ONLY, this::printHelp);
     }
 
     public void linkPollQueue(PollReflectionQueue pollReflectionQueue) {
         this.pollReflectionQueue = pollReflectionQueue;
+        pollReflectionQueue.setExpiryListener(this::onPollExpired);
     }
 
     @Override
     public void onUpdateReceived(Update update) {
-        long userId = targetUserId;
-        UpdateType updateType = UpdateType.UNKNOWN;
-
-        if (update.hasMessage()) {
-            userId = update.getMessage().getFrom().getId();
-            updateType = UpdateType.MESSAGE;
-        } else if (update.hasCallbackQuery()) {
-            userId = update.getCallbackQuery().getFrom().getId();
-            updateType = UpdateType.CALLBACK_QUERY;
-        }
+        UpdateRouter.RoutedUpdate routedUpdate = UpdateRouter.parse(update);
 
-        if (userId != targetUserId) {
-            log.warn("Received {} from unknown user id={}", updateType, userId);
+        if (routedUpdate == null) {
+            log.warn("Received unknown operation: {}", update);
             return;
         }
 
-        if (updateType.equals(UpdateType.UNKNOWN)) {
-            log.warn("Received unknown operation: {}", update);
+        if (!userDirectory.isAllowed(routedUpdate.userId())) {
+            log.warn("Received {} from unknown user id={}", routedUpdate.kind(), routedUpdate.userId());
+            return;
         }
 
-        dispatchPoll(update);
-        dispatchFlow(update);
-        dispatchCommand(update);
+        updateDispatcher.submit(routedUpdate.chatId(), () -> {
+            ChatSession session = sessionRegistry.getOrCreate(routedUpdate.chatId());
+            if (!updateRouter.route(routedUpdate, session)) {
+                log.debug("No handler for {} '{}'", routedUpdate.kind(), routedUpdate.key());
+            }
+        });
+    }
+
+    public String getUpdateDispatcherStats() {
+        return updateDispatcher.getStats();
+    }
+
+    /*
+     * Lets updates already accepted for each chat finish
+     */
+    public void shutdownUpdateDispatcher() {
+        updateDispatcher.shutdown(UPDATE_DISPATCHER_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Returns number of evicted sessions
+     */
+    public int evictIdleSessions() {
+        return sessionRegistry.evictIdle(System.currentTimeMillis());
+    }
+
+    public int getSessionCount() {
+        return sessionRegistry.size();
+    }
+
+    public UserDirectory getUserDirectory() {
+        return userDirectory;
     }
 
     public void enableDebugMode(boolean enabled) {
-        debugMode = enabled;
+        commandRegistry.setMode(enabled ? CommandRegistry.Mode.DEBUG : CommandRegistry.Mode.PRODUCTION);
     }
 
-    private void simulatePoll() {
+    private void simulatePoll(CommandRegistry.CommandContext context) {
         Reflection reflection = new Reflection(LocalDateTime.now());
-        addPoll(reflection);
+        addPoll(context.chatId(), reflection);
     }
 
-    private void simulateRandomPoll() {
-        int hour = RandomGenerator.getDefault().nextInt(10) + 9;
+    private void simulateRandomPoll(CommandRegistry.CommandContext context) {
+        int hour = context.intArg(0, RandomGenerator.getDefault().nextInt(10) + 9) % 24;
         Reflection reflection = new Reflection(LocalDateTime.now(), DateTextFormatter.getTimePeriod(hour));
-        addPoll(reflection);
+        addPoll(context.chatId(), reflection);
     }
 
-    private void simulateDayPoll() {
+    private void simulateDayPoll(CommandRegistry.CommandContext context) {
         Reflection reflection = new Reflection(LocalDateTime.now(), ReflectionWriter.getOverallTimePeriod());
-        addPoll(reflection);
+        addPoll(context.chatId(), reflection);
     }
 
-    private void printQueue() {
+    private void printQueue(CommandRegistry.CommandContext context) {
         log.debug(pollReflectionQueue.toString());
     }
 
-    public void addPoll(Reflection reflection) throws NullPointerException {
+    private void printHelp(CommandRegistry.CommandContext context) {
+        sendTextAsync(context.chatId(), commandRegistry.describe());
+    }
+
+    /*
+     * Queues the reflection for the user and the prompt for the user's private chat (its id is the user id).
+     * Doesn't wait for the prompt to be sent, so hourly polls for many users go out as fast as Telegram allows.
+     * The returned future completes once the prompt is sent
+     */
+    public CompletableFuture<Message> addPoll(long userId, Reflection reflection) throws NullPointerException {
         if (pollReflectionQueue == null) {
             throw new NullPointerException(MSG_POLL_QUEUE_NULL);
         }
-        log.debug("New poll added to the queue; timeperiod={} / id={}", reflection.getTargetTimePeriod(), reflection.getId());
-        sendMenu(ReflectionWriter.buildMessage(reflection, MESSAGE__OFFER_RATING), new QuestionMenu(reflection.getId()).getKeyboard());
+        reflection.setUserId(userId);
+        log.debug("New poll added to the queue; user={} / timeperiod={} / id={}", userId, reflection.getTargetTimePeriod(), reflection.getId());
         pollReflectionQueue.add(reflection);
+
+        CompletableFuture<Message> prompt = sendMenuAsync(userId, ReflectionWriter.buildMessage(reflection, MESSAGE__OFFER_RATING), new QuestionMenu(reflection.getId()).getKeyboard());
+        prompt.thenAccept(sentPrompt -> {
+            reflection.setPromptMessageId(sentPrompt.getMessageId());
+            pollReflectionQueue.refresh(reflection);
+        });
+        return prompt;
+    }
+
+    /*
+     * Replaces the buttons of an expired prompt, so it can't be answered anymore
+     */
+    private void onPollExpired(Reflection reflection) {
+        if (reflection.getPromptMessageId() == 0) {
+            return;
+        }
+
+        editMessageAsync(reflection.getUserId(), reflection.getPromptMessageId(), ReflectionWriter.buildMessage(reflection, MESSAGE__REQUEST_EXPIRED));
     }
 
     public PollReflectionQueue getPollReflectionQueue() {
         return pollReflectionQueue;
     }
 
-    public void dispatchPoll(Update update) {
-        if (update.hasCallbackQuery()) {
-            CallbackQueryExt callbackQueryExt = CallbackQueryExt.extend(update.getCallbackQuery());
+    private void handlePollAnswer(UpdateRouter.RoutedUpdate update, ChatSession session) {
+        CallbackQueryExt callbackQueryExt = update.callback();
 
-            if (!callbackQueryExt.hasPurpose(QuestionMenu.getPurpose())) {
-                return;
-            }
+        // Handle menu callback - edit message and start flow
+        String answer = callbackQueryExt.getCallbackPayload();
+        String reflectionId = callbackQueryExt.getCallbackId();
+        long userId = update.userId();
+        String newMessageText = "";
+        PollActivityFlow startedFlow = null;
+
+        Reflection targetReflection = pollReflectionQueue.getById(userId, reflectionId);
 
-            // Handle menu callback - edit message and start flow
-            String answer = callbackQueryExt.getCallbackPayload();
-            String reflectionId = callbackQueryExt.getCallbackId();
-            String newMessageText = "";
-
-            Reflection targetReflection = pollReflectionQueue.getById(reflectionId);
-
-            if (targetReflection != null) {
-                if (answer.equals(QuestionMenu.getAnswerPositive())) {
-                    // If answer is YES - create new flow
-                    newMessageText = ReflectionWriter.buildMessage(targetReflection, MESSAGE__REQUEST_ACCEPTED);
-                    if (currentFlow != null) {
-                        currentFlow.end();
-                    }
-                    currentFlow = new PollActivityFlow(this ,targetReflection);
-                    currentFlow.start();
-                } else {
-                    // If answer is NO - reflection skipped
-                    newMessageText = ReflectionWriter.buildMessage(targetReflection, MESSAGE__REQUEST_SKIPPED);
-                }
-
-                pollReflectionQueue.removeById(reflectionId);
+        if (targetReflection != null) {
+            if (answer.equals(QuestionMenu.getAnswerPositive())) {
+                // If answer is YES - create new flow
+                newMessageText = ReflectionWriter.buildMessage(targetReflection, MESSAGE__REQUEST_ACCEPTED);
+                startedFlow = new PollActivityFlow(this, session.getChatId(), targetReflection);
+                session.startFlow(startedFlow);
             } else {
-                newMessageText = MESSAGE__REQUEST_NOT_FOUND;
+                // If answer is NO - reflection skipped
+                newMessageText = ReflectionWriter.buildMessage(targetReflection, MESSAGE__REQUEST_SKIPPED);
             }
 
-            editMessageCallback(callbackQueryExt.getOriginal(), newMessageText);
-
-            // Wrap up callback handler
-            answerCallback(callbackQueryExt.getOriginal());
-        }
-    }
-    public void dispatchCommand(Update update) {
-        if (update.hasMessage()) {
-            Message msg = update.getMessage();
-
-            if (msg.isCommand()) {
-                String txt = "";
-                if (msg.hasText()) {
-                    txt = msg.getText();
-                    if (debugMode) {
-                        try {
-                            log.debug("Executing command-method = {}", txt);
-                            Method method = this.getClass().getDeclaredMethod(txt.replace("/", ""));
-                            method.invoke(this);
-                        } catch (Exception e) {
-                            log.warn("Command-method invoke exception = {}: {}", txt, e.getMessage());
-                        }
-                    }
-                }
-            }
+            pollReflectionQueue.removeById(userId, reflectionId);
+        } else {
+            newMessageText = MESSAGE__REQUEST_NOT_FOUND;
         }
-    }
 
-    public void dispatchFlow(Update update) {
-        if (currentFlow != null) {
-            if (currentFlow.isFinished()) {
-                currentFlow = null;
-                return;
-            }
+        // Answer and edit go out together, the answer stops the button's spinner right away
+        answerCallbackAsync(callbackQueryExt.getOriginal());
+        CompletableFuture<?> promptEdited = editMessageCallbackAsync(callbackQueryExt.getOriginal(), newMessageText);
 
-            currentFlow.handleUpdate(update);
+        // The new flow asks its first question once the prompt is edited (or the edit failed),
+        // back in the chat's lane so it doesn't race with the chat's next update
+        if (startedFlow != null) {
+            PollActivityFlow flow = startedFlow;
+            promptEdited.whenComplete((edited, throwable) -> updateDispatcher.submit(session.getChatId(), flow::refresh));
         }
     }
 
-    public void sendText(String text) {
-        super.sendText(this.targetUserId, text);
+    private void handleCommand(UpdateRouter.RoutedUpdate update, ChatSession session) {
+        CommandRegistry.CommandContext context =
+                new CommandRegistry.CommandContext(session.getChatId(), update.userId(), CommandRegistry.parseArgs(update.getText()));
 
-    }
-
-    public void sendMenu(String text, InlineKeyboardMarkup keyboard) {
-        super.sendMenu(this.targetUserId, text, keyboard);
+        CommandRegistry.Result result = commandRegistry.dispatch(update.key(), context);
+        if (result == CommandRegistry.Result.EXECUTED) {
+            log.debug("Executed command {} {}", update.key(), context.args());
+        } else {
+            log.debug("Command {} not executed: {}", update.key(), result);
+        }
     }
 }
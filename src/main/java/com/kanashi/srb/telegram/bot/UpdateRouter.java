@@ -0,0 +1,120 @@
+package com.kanashi.srb.telegram.bot;
+
+import com.kanashi.srb.app.model.user.ChatSession;
+import com.kanashi.srb.telegram.bot.model.ext.CallbackQueryExt;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import javax.annotation.Nullable;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Sends every update to exactly one handler, found by update kind and key: the purpose tag for callbacks,
+ * the command name for commands. Updates are parsed once, so the cost per update doesn't grow with the number
+ * of menus and flows. Handlers are registered up front by the menus and flows which own them
+ */
+public class UpdateRouter {
+    public enum Kind {
+        TEXT,
+        COMMAND,
+        CALLBACK
+    }
+
+    /*
+     * An update parsed once for routing. key is the callback purpose, the command (without the bot mention) or empty for text
+     */
+    public record RoutedUpdate(Update update, Kind kind, String key, long userId, long chatId, @Nullable CallbackQueryExt callback) {
+        @Nullable
+        public String getText() {
+            return update.hasMessage() ? update.getMessage().getText() : null;
+        }
+    }
+
+    public interface Handler {
+        void handle(RoutedUpdate update, ChatSession session);
+    }
+
+    private final EnumMap<Kind, Map<String, Handler>> handlers = new EnumMap<>(Kind.class);
+    private final EnumMap<Kind, Handler> defaultHandlers = new EnumMap<>(Kind.class);
+
+    public UpdateRouter() {
+        for (Kind kind : Kind.values()) {
+            handlers.put(kind, new HashMap<>());
+        }
+    }
+
+    /*
+     * Not thread-safe: register everything before updates start coming
+     */
+    public void register(Kind kind, String key, Handler handler) {
+        if (handlers.get(kind).putIfAbsent(key, handler) != null) {
+            throw new IllegalStateException("Handler for " + kind + " '" + key + "' is already registered");
+        }
+    }
+
+    /*
+     * Handles updates of the kind which have no handler for their key
+     */
+    public void registerDefault(Kind kind, Handler handler) {
+        if (defaultHandlers.putIfAbsent(kind, handler) != null) {
+            throw new IllegalStateException("Default handler for " + kind + " is already registered");
+        }
+    }
+
+    /*
+     * Returns null for updates the bot doesn't handle (e.g. messages without text)
+     */
+    @Nullable
+    public static RoutedUpdate parse(Update update) {
+        if (update.hasCallbackQuery()) {
+            CallbackQueryExt callback = CallbackQueryExt.extend(update.getCallbackQuery());
+            long chatId = update.getCallbackQuery().getMessage() != null ? update.getCallbackQuery().getMessage().getChatId() : 0L;
+            return new RoutedUpdate(update, Kind.CALLBACK, callback.getCallbackPurpose(),
+                    update.getCallbackQuery().getFrom().getId(), chatId, callback);
+        }
+
+        if (update.hasMessage() && update.getMessage().hasText()) {
+            Message message = update.getMessage();
+            long userId = message.getFrom() != null ? message.getFrom().getId() : 0L;
+            if (message.isCommand()) {
+                return new RoutedUpdate(update, Kind.COMMAND, commandName(message.getText()), userId, message.getChatId(), null);
+            }
+            return new RoutedUpdate(update, Kind.TEXT, "", userId, message.getChatId(), null);
+        }
+
+        return null;
+    }
+
+    /*
+     * "/cmd@BotName arg" -> "/cmd"
+     */
+    private static String commandName(String text) {
+        int end = text.length();
+        for (int charIdx = 1; charIdx < text.length(); charIdx++) {
+            char c = text.charAt(charIdx);
+            if (c == ' ' || c == '@' || c == '\n') {
+                end = charIdx;
+                break;
+            }
+        }
+        return text.substring(0, end);
+    }
+
+    /*
+     * Returns false if there's no handler for the update
+     */
+    public boolean route(RoutedUpdate update, ChatSession session) {
+        Handler handler = handlers.get(update.kind()).get(update.key());
+        if (handler == null) {
+            handler = defaultHandlers.get(update.kind());
+        }
+        if (handler == null) {
+            return false;
+        }
+
+        handler.handle(update, session);
+        return true;
+    }
+}
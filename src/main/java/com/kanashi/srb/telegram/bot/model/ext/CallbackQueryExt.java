@@ -2,14 +2,44 @@ package com.kanashi.srb.telegram.bot.model.ext;
 
 import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
 
-public class CallbackQueryExt extends CallbackQuery {
-    private final static String EXTENSION_TAG = "&ext";
-    private static final String EXTENSION_FORMAT = "[%s]p=%s/id=%s/msg=%s";
-    private static final String EXTENSION_PATTERN = "\\[" + EXTENSION_TAG + "]p=(.+)/id=(.+)/msg=(.+$)";
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HexFormat;
+
+/*
+ * Callback data of our menus, parsed once into an immutable view.
+ *
+ * Layout: "~purpose|id|payload". A 32-char hex id (reflection ids) is packed as '#' + 22 base64url chars,
+ * other ids are written as is and can't contain '#'. Buttons sent before use "[&ext]p=purpose/id=id/msg=payload" and still parse;
+ * plain data without either tag is purpose, id and payload at once
+ */
+public final class CallbackQueryExt {
+    private static final char TAG = '~';
+    private static final char SEPARATOR = '|';
+    private static final char PACKED_ID_TAG = '#';
+    private static final int PACKED_ID_HEX_LENGTH = 32;
+    private static final int PACKED_ID_LENGTH = 1 + 22;
+    private static final int MAX_CALLBACK_DATA_BYTES = 64; // Telegram's limit for callback_data
+
+    private static final String LEGACY_TAG = "[&ext]";
+    private static final String LEGACY_PURPOSE_PREFIX = LEGACY_TAG + "p=";
+    private static final String LEGACY_ID_SEPARATOR = "/id=";
+    private static final String LEGACY_PAYLOAD_SEPARATOR = "/msg=";
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final Base64.Encoder ID_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder ID_DECODER = Base64.getUrlDecoder();
+
     private final CallbackQuery callbackQuery;
+    private final String purpose;
+    private final String id;
+    private final String payload;
 
-    public CallbackQueryExt(CallbackQuery callbackQuery) {
+    private CallbackQueryExt(CallbackQuery callbackQuery, String purpose, String id, String payload) {
         this.callbackQuery = callbackQuery;
+        this.purpose = purpose;
+        this.id = id;
+        this.payload = payload;
     }
 
     public CallbackQuery getOriginal() {
@@ -17,43 +47,103 @@ public class CallbackQueryExt extends CallbackQuery {
     }
 
     public static CallbackQueryExt extend(CallbackQuery callbackQuery) {
-        return new CallbackQueryExt(callbackQuery);
+        String callbackData = callbackQuery.getData() != null ? callbackQuery.getData() : "";
+
+        if (!callbackData.isEmpty() && callbackData.charAt(0) == TAG) {
+            int idStart = callbackData.indexOf(SEPARATOR, 1) + 1;
+            int payloadStart = idStart > 0 ? callbackData.indexOf(SEPARATOR, idStart) + 1 : 0;
+            if (payloadStart > 0) {
+                return new CallbackQueryExt(callbackQuery,
+                        callbackData.substring(1, idStart - 1),
+                        unpackId(callbackData.substring(idStart, payloadStart - 1)),
+                        callbackData.substring(payloadStart));
+            }
+        } else if (callbackData.startsWith(LEGACY_PURPOSE_PREFIX)) {
+            // Same split as the old greedy "p=(.+)/id=(.+)/msg=(.+$)" pattern: the last separators win
+            int payloadSeparatorIdx = callbackData.lastIndexOf(LEGACY_PAYLOAD_SEPARATOR);
+            int idSeparatorIdx = payloadSeparatorIdx < 0 ? -1 : callbackData.lastIndexOf(LEGACY_ID_SEPARATOR, payloadSeparatorIdx - 1);
+            int idStart = idSeparatorIdx + LEGACY_ID_SEPARATOR.length();
+            int payloadStart = payloadSeparatorIdx + LEGACY_PAYLOAD_SEPARATOR.length();
+            if (idSeparatorIdx > LEGACY_PURPOSE_PREFIX.length() && payloadSeparatorIdx > idStart && payloadStart < callbackData.length()) {
+                return new CallbackQueryExt(callbackQuery,
+                        callbackData.substring(LEGACY_PURPOSE_PREFIX.length(), idSeparatorIdx),
+                        callbackData.substring(idStart, payloadSeparatorIdx),
+                        callbackData.substring(payloadStart));
+            }
+        }
+
+        return new CallbackQueryExt(callbackQuery, callbackData, callbackData, callbackData);
     }
 
     public boolean hasPurpose(String expectedCallbackPurpose) {
-        String callbackData = callbackQuery.getData();
-
-        String actualCallbackPurpose;
-        if (callbackData.contains(EXTENSION_TAG)) {
-            actualCallbackPurpose = callbackData.replaceAll(EXTENSION_PATTERN, "$1");
-        } else {
-            actualCallbackPurpose = callbackData;
-        }
+        return purpose.equals(expectedCallbackPurpose);
+    }
 
-        return actualCallbackPurpose.equals(expectedCallbackPurpose);
+    public String getCallbackPurpose() {
+        return purpose;
     }
 
     public String getCallbackPayload() {
-        String callbackData = callbackQuery.getData();
+        return payload;
+    }
+
+    public String getCallbackId() {
+        return id;
+    }
 
-        if (callbackData.contains(EXTENSION_TAG)) {
-            return callbackData.replaceAll(EXTENSION_PATTERN, "$3");
+    /*
+     * Throws IllegalArgumentException if purpose or id contain the separator, the id contains the packed id tag
+     * or the result doesn't fit Telegram's limit
+     */
+    public static String buildCallbackData(String purpose, String id, String data) {
+        if (purpose.indexOf(SEPARATOR) >= 0 || id.indexOf(SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Callback purpose and id can't contain '" + SEPARATOR + "': " + purpose + ", " + id);
+        }
+        if (id.indexOf(PACKED_ID_TAG) >= 0) {
+            throw new IllegalArgumentException("Callback id can't contain '" + PACKED_ID_TAG + "': " + id);
+        }
+
+        String callbackData = TAG + purpose + SEPARATOR + packId(id) + SEPARATOR + data;
+        if (callbackData.getBytes(StandardCharsets.UTF_8).length > MAX_CALLBACK_DATA_BYTES) {
+            throw new IllegalArgumentException("Callback data is longer than " + MAX_CALLBACK_DATA_BYTES + " bytes: " + callbackData);
         }
 
         return callbackData;
     }
 
-    public String getCallbackId() {
-        String callbackData = callbackQuery.getData();
-
-        if (callbackData.contains(EXTENSION_TAG)) {
-            return callbackData.replaceAll(EXTENSION_PATTERN, "$2");
+    private static String packId(String id) {
+        if (id.length() != PACKED_ID_HEX_LENGTH) {
+            return id;
+        }
+        for (int charIdx = 0; charIdx < id.length(); charIdx++) {
+            char c = id.charAt(charIdx);
+            // Only lowercase hex, so the id unpacks to exactly the same string
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return id;
+            }
         }
 
-        return callbackData;
+        return PACKED_ID_TAG + ID_ENCODER.encodeToString(HEX.parseHex(id));
     }
 
-    public static String buildCallbackData(String purpose, String id, String data) {
-        return String.format(EXTENSION_FORMAT, EXTENSION_TAG, purpose, id, data);
+    /*
+     * Only '#' followed by exactly 22 base64url chars is a packed id, anything else is kept as is
+     */
+    private static String unpackId(String packedId) {
+        if (packedId.length() != PACKED_ID_LENGTH || packedId.charAt(0) != PACKED_ID_TAG) {
+            return packedId;
+        }
+        for (int charIdx = 1; charIdx < packedId.length(); charIdx++) {
+            char c = packedId.charAt(charIdx);
+            if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+                return packedId;
+            }
+        }
+
+        try {
+            return HEX.formatHex(ID_DECODER.decode(packedId.substring(1)));
+        } catch (IllegalArgumentException iae) {
+            return packedId;
+        }
     }
 }